@@ -0,0 +1,160 @@
+package ml.classifiers;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * k-means kernels using the Java Vector API so the loops run on the widest SIMD registers available
+ * (e.g. AVX2/AVX-512).  Float data is loaded with half-width float vectors and widened to doubles
+ * so accumulation is always in double precision.
+ * 
+ * The single-centroid sparse dot products are inherited from ScalarKernels: gather loads barely beat the
+ * scalar loop (the time goes to the random accesses) and the JDK 17 C2 gather intrinsics crash the JVM on
+ * AVX-512.  Scoring a sparse row against all of the centroids (sparseDots) needs no gathers: the centroids
+ * are stored by feature, so each non-zero value is multiplied into a contiguous run of centroid values.
+ * 
+ * Needs --add-modules jdk.incubator.vector both to compile and to run; Kernels.get() falls back
+ * to ScalarKernels when the module isn't there.
+ */
+public class VectorKernels extends ScalarKernels {
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+	// floats with the same number of lanes as DOUBLES, so they can be widened one vector at a time
+	private static final VectorSpecies<Float> FLOATS =
+			VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+	
+	public void sparseDots(double[] values, int[] indices, int length, double[] columns, int num_centroids, double[] scores) {
+		// one pass over the row for each SIMD register's worth of centroids, accumulating in the register
+		for (int c = 0; c < num_centroids; c += DOUBLES.length()) {
+			DoubleVector sum = DoubleVector.zero(DOUBLES);
+			if (c + DOUBLES.length() <= num_centroids) {
+				for (int i = 0; i < length; i++) {
+					DoubleVector column = DoubleVector.fromArray(DOUBLES, columns, indices[i] * num_centroids + c);
+					sum = column.fma(DoubleVector.broadcast(DOUBLES, values[i]), sum);
+				}
+				sum.intoArray(scores, c);
+			}
+			else {
+				VectorMask<Double> mask = DOUBLES.indexInRange(c, num_centroids);
+				for (int i = 0; i < length; i++) {
+					DoubleVector column = DoubleVector.fromArray(DOUBLES, columns, indices[i] * num_centroids + c, mask);
+					sum = column.fma(DoubleVector.broadcast(DOUBLES, values[i]), sum);
+				}
+				sum.intoArray(scores, c, mask);
+			}
+		}
+	}
+	
+	public void sparseDots(double[] values, int[] indices, int length, float[] columns, int num_centroids, double[] scores) {
+		for (int c = 0; c < num_centroids; c += FLOATS.length()) {
+			DoubleVector sum = DoubleVector.zero(DOUBLES);
+			if (c + FLOATS.length() <= num_centroids) {
+				for (int i = 0; i < length; i++) {
+					DoubleVector column = widen(FloatVector.fromArray(FLOATS, columns, indices[i] * num_centroids + c));
+					sum = column.fma(DoubleVector.broadcast(DOUBLES, values[i]), sum);
+				}
+				sum.intoArray(scores, c);
+			}
+			else {
+				VectorMask<Float> mask = FLOATS.indexInRange(c, num_centroids);
+				for (int i = 0; i < length; i++) {
+					DoubleVector column = widen(FloatVector.fromArray(FLOATS, columns, indices[i] * num_centroids + c, mask));
+					sum = column.fma(DoubleVector.broadcast(DOUBLES, values[i]), sum);
+				}
+				sum.intoArray(scores, c, DOUBLES.indexInRange(c, num_centroids));
+			}
+		}
+	}
+	
+	public double dot(double[] a, int a_offset, double[] b, int b_offset, int length) {
+		DoubleVector sum = DoubleVector.zero(DOUBLES);
+		int i = 0;
+		for (; i < DOUBLES.loopBound(length); i += DOUBLES.length()) {
+			DoubleVector va = DoubleVector.fromArray(DOUBLES, a, a_offset + i);
+			DoubleVector vb = DoubleVector.fromArray(DOUBLES, b, b_offset + i);
+			sum = va.fma(vb, sum);
+		}
+		double result = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			result += a[a_offset + i] * b[b_offset + i];
+		}
+		return result;
+	}
+	
+	public double dot(float[] a, int a_offset, float[] b, int b_offset, int length) {
+		DoubleVector sum = DoubleVector.zero(DOUBLES);
+		int i = 0;
+		for (; i < DOUBLES.loopBound(length); i += DOUBLES.length()) {
+			DoubleVector va = widen(FloatVector.fromArray(FLOATS, a, a_offset + i));
+			DoubleVector vb = widen(FloatVector.fromArray(FLOATS, b, b_offset + i));
+			sum = va.fma(vb, sum);
+		}
+		double result = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			result += (double) a[a_offset + i] * b[b_offset + i];
+		}
+		return result;
+	}
+	
+	public double dot(double[] a, int a_offset, float[] b, int b_offset, int length) {
+		DoubleVector sum = DoubleVector.zero(DOUBLES);
+		int i = 0;
+		for (; i < DOUBLES.loopBound(length); i += DOUBLES.length()) {
+			DoubleVector va = DoubleVector.fromArray(DOUBLES, a, a_offset + i);
+			DoubleVector vb = widen(FloatVector.fromArray(FLOATS, b, b_offset + i));
+			sum = va.fma(vb, sum);
+		}
+		double result = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			result += a[a_offset + i] * b[b_offset + i];
+		}
+		return result;
+	}
+	
+	public double scaleInto(double[] source, double scale, double[] dest, int offset, int length) {
+		DoubleVector sum = DoubleVector.zero(DOUBLES);
+		int i = 0;
+		for (; i < DOUBLES.loopBound(length); i += DOUBLES.length()) {
+			DoubleVector v = DoubleVector.fromArray(DOUBLES, source, i).mul(scale);
+			v.intoArray(dest, offset + i);
+			sum = v.fma(v, sum);
+		}
+		double result = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			double value = source[i] * scale;
+			dest[offset + i] = value;
+			result += value * value;
+		}
+		return result;
+	}
+	
+	public double scaleInto(double[] source, double scale, float[] dest, int offset, int length) {
+		DoubleVector sum = DoubleVector.zero(DOUBLES);
+		int i = 0;
+		for (; i < DOUBLES.loopBound(length); i += DOUBLES.length()) {
+			FloatVector f = (FloatVector) DoubleVector.fromArray(DOUBLES, source, i).mul(scale)
+					.convertShape(VectorOperators.D2F, FLOATS, 0);
+			f.intoArray(dest, offset + i);
+			DoubleVector v = widen(f);
+			sum = v.fma(v, sum);
+		}
+		double result = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < length; i++) {
+			float value = (float) (source[i] * scale);
+			dest[offset + i] = value;
+			result += (double) value * value;
+		}
+		return result;
+	}
+	
+	private static DoubleVector widen(FloatVector f) {
+		return (DoubleVector) f.convertShape(VectorOperators.F2D, DOUBLES, 0);
+	}
+	
+	public String toString() {
+		return "vector (" + DOUBLES + ")";
+	}
+}
@@ -0,0 +1,510 @@
+package ml.classifiers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import ml.data.DataSet;
+import ml.data.Example;
+import ml.data.SparseMatrix;
+
+/**
+ * Bisecting (hierarchical) k-means. Starting with all of the data in one cluster, the largest cluster is repeatedly
+ * split in two with 2-means until there are k clusters. The splits form a binary tree of centroids, so classifying
+ * an example only needs two comparisons per level of the tree (O(log k) for a balanced tree) instead of comparing
+ * against all k centroids. The k leaf centroids are the flat clustering and can still be used directly (classifyFlat).
+ *
+ * Uses the same tf/idf weighting and cosine similarity as KMeansClassifier, over a SparseMatrix.
+ */
+public class BisectingKMeansClassifier implements Classifier, ClusterAssigner {
+
+	private int k; // number of clusters
+	private int numIterations; // number of 2-means iterations for each split
+	private boolean single_precision = false; // whether to store the centroids as floats
+	private Kernels kernels = Kernels.get();
+
+	private SparseMatrix matrix;
+	private SparseMatrix data_matrix; // the matrix made by the last train(DataSet), if any (closed when replaced)
+	private double[] idf_vector; // idf value for each feature index
+	private double[] row_norms; // magnitude of each (tf/idf) row of the matrix
+
+	// The centroid tree. Node 0 is the root; children are only ever added after their parent
+	private NodeCentroid[] node_centroids; // centroid of every node
+	private int[] left_child; // -1 for leaves
+	private int[] right_child;
+	private int[] node_cluster; // flat cluster index of each leaf, -1 for internal nodes
+	private int[] leaf_nodes; // node of each flat cluster
+	private int num_nodes;
+
+	private int[] assignments; // flat cluster of each row of the matrix
+	private double[] cluster_labels; // majority label of each flat cluster
+	private CentroidMatrix split_centroids; // scratch space for the two centroids of the node being split
+	private double[] sum; // scratch space for computing means
+	private final RowBuffer row_buffer = new RowBuffer(); // scratch space for the current row of the matrix
+
+	// Hyperparameters
+	public void setK(int k) { this.k = k; }
+	public void setNumIterations(int n) { this.numIterations = n; }
+	public void setSinglePrecision(boolean single_precision) { this.single_precision = single_precision; }
+	public void setKernels(Kernels kernels) { this.kernels = kernels; }
+
+	/**
+	 * Train on a copy of the data (unlike KMeansClassifier, the examples are not changed).
+	 * The copy is kept for evaluate until the next train, which closes it.
+	 */
+	public void train(DataSet data) {
+		SparseMatrix data_matrix;
+		try {
+			data_matrix = SparseMatrix.fromDataSet(data, single_precision);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		train(data_matrix);
+		this.data_matrix = data_matrix;
+	}
+
+	/**
+	 * Build the centroid tree for the matrix. The matrix values are changed to tf/idf values.
+	 * @param data
+	 */
+	public void train(SparseMatrix data) {
+		closeDataMatrix();
+		matrix = data;
+		int num_rows = (int) matrix.numRows();
+		int num_features = matrix.numColumns();
+
+		idf_vector = KMeansClassifier.getIDF(matrix);
+		KMeansClassifier.initialize_tfidf_values(matrix, idf_vector);
+		row_norms = KMeansClassifier.getRowNorms(matrix);
+
+		int max_nodes = 2 * k - 1;
+		node_centroids = new NodeCentroid[max_nodes];
+		split_centroids = new CentroidMatrix(2, num_features, single_precision, kernels);
+		left_child = new int[max_nodes];
+		right_child = new int[max_nodes];
+		Arrays.fill(left_child, -1);
+		Arrays.fill(right_child, -1);
+		sum = new double[num_features];
+
+		// the rows in each leaf that may still be split, largest first
+		ArrayList<int[]> node_rows = new ArrayList<int[]>();
+		PriorityQueue<Integer> to_split = new PriorityQueue<Integer>(
+				(a, b) -> Integer.compare(node_rows.get(b).length, node_rows.get(a).length));
+
+		int[] all_rows = new int[num_rows];
+		for (int row = 0; row < num_rows; row++) {
+			all_rows[row] = row;
+		}
+		num_nodes = 1;
+		node_rows.add(all_rows);
+		setMean(split_centroids, 0, all_rows);
+		node_centroids[0] = new NodeCentroid(split_centroids, 0, kernels);
+		to_split.add(0);
+
+		int num_leaves = 1;
+		while (num_leaves < k && !to_split.isEmpty()) {
+			int node = to_split.poll();
+			int[][] halves = split(node_rows.get(node));
+			if (halves == null) { continue; } // can't be split, so it stays a leaf
+
+			// split leaves the means of the two halves in split_centroids
+			for (int side = 0; side < 2; side++) {
+				int child = num_nodes++;
+				node_rows.add(halves[side]);
+				node_centroids[child] = new NodeCentroid(split_centroids, side, kernels);
+				to_split.add(child);
+				if (side == 0) {
+					left_child[node] = child;
+				}
+				else {
+					right_child[node] = child;
+				}
+			}
+			num_leaves++;
+		}
+
+		// number the leaves to get the flat clustering
+		node_cluster = new int[num_nodes];
+		leaf_nodes = new int[num_leaves];
+		assignments = new int[num_rows];
+		int cluster = 0;
+		for (int node = 0; node < num_nodes; node++) {
+			if (left_child[node] == -1) {
+				node_cluster[node] = cluster;
+				leaf_nodes[cluster] = node;
+				for (int row : node_rows.get(node)) {
+					assignments[row] = cluster;
+				}
+				cluster++;
+			}
+			else {
+				node_cluster[node] = -1;
+			}
+		}
+		split_centroids = null;
+		sum = null;
+
+		ClusterEvaluation evaluation = evaluate(1);
+		cluster_labels = new double[num_leaves];
+		for (int c = 0; c < num_leaves; c++) {
+			cluster_labels[c] = evaluation.getMajorityLabel(c);
+		}
+	}
+
+	/**
+	 * Split rows in two with 2-means. The first row is one starting centroid and the row least similar to it
+	 * is the other (the same farthest-first idea as KMeansClassifier).
+	 * If the rows are split, split_centroids is left holding the means of the two halves.
+	 * @param rows
+	 * @return the two halves, or null if the rows can't be split
+	 */
+	private int[][] split(int[] rows) {
+		if (rows.length < 2) {
+			return null;
+		}
+
+		CentroidMatrix pair = split_centroids;
+		setRowCentroid(pair, 0, rows[0]);
+		double min_cos = Double.MAX_VALUE;
+		int farthest_row = rows[1];
+		for (int row : rows) {
+			int length = row_buffer.load(matrix, row);
+			double cos = pair.dot(0, row_buffer.values, row_buffer.indices, length) / (row_norms[row] * pair.norm(0));
+			if (cos < min_cos) {
+				min_cos = cos;
+				farthest_row = row;
+			}
+		}
+		setRowCentroid(pair, 1, farthest_row);
+
+		boolean[] right = new boolean[rows.length];
+		int num_right = 0;
+		boolean means_current = false; // whether pair holds the means of the current halves
+		for (int iteration = 0; iteration <= numIterations; iteration++) {
+			boolean changed = false;
+			num_right = 0;
+			for (int i = 0; i < rows.length; i++) {
+				int length = row_buffer.load(matrix, rows[i]);
+				double cos_left = pair.dot(0, row_buffer.values, row_buffer.indices, length) / pair.norm(0);
+				double cos_right = pair.dot(1, row_buffer.values, row_buffer.indices, length) / pair.norm(1);
+				boolean goes_right = cos_right > cos_left;
+				if (goes_right != right[i] || iteration == 0) {
+					changed = true;
+				}
+				right[i] = goes_right;
+				if (goes_right) {
+					num_right++;
+				}
+			}
+			if (num_right == 0 || num_right == rows.length) {
+				return null;
+			}
+			if (!changed) {
+				means_current = true;
+				break;
+			}
+			if (iteration == numIterations) {
+				break;
+			}
+			setMeans(pair, rows, right);
+		}
+		if (!means_current) {
+			setMeans(pair, rows, right);
+		}
+
+		int[][] halves = {new int[rows.length - num_right], new int[num_right]};
+		int l = 0;
+		int r = 0;
+		for (int i = 0; i < rows.length; i++) {
+			if (right[i]) {
+				halves[1][r++] = rows[i];
+			}
+			else {
+				halves[0][l++] = rows[i];
+			}
+		}
+		return halves;
+	}
+
+	/**
+	 * Set a centroid to the weighted mean of rows
+	 */
+	private void setMean(CentroidMatrix centroids, int index, int[] rows) {
+		Arrays.fill(sum, 0);
+		double total_weight = 0;
+		for (int row : rows) {
+			total_weight += addRow(row, matrix.getWeight(row));
+		}
+		centroids.setRow(index, sum, 1.0 / total_weight);
+	}
+
+	/**
+	 * Set the two centroids of a split to the weighted means of their halves
+	 * @param pair
+	 * @param rows
+	 * @param right which half each row is in
+	 */
+	private void setMeans(CentroidMatrix pair, int[] rows, boolean[] right) {
+		for (int side = 0; side < 2; side++) {
+			Arrays.fill(sum, 0);
+			double total_weight = 0;
+			for (int i = 0; i < rows.length; i++) {
+				if (right[i] == (side == 1)) {
+					total_weight += addRow(rows[i], matrix.getWeight(rows[i]));
+				}
+			}
+			pair.setRow(side, sum, 1.0 / total_weight);
+		}
+	}
+
+	private void setRowCentroid(CentroidMatrix centroids, int index, int row) {
+		Arrays.fill(sum, 0);
+		addRow(row, 1.0);
+		centroids.setRow(index, sum);
+	}
+
+	/**
+	 * Add weight * row to sum
+	 * @return the weight
+	 */
+	private double addRow(int row, double weight) {
+		for (long p = matrix.rowStart(row); p < matrix.rowEnd(row); p++) {
+			sum[matrix.getIndex(p)] += weight * matrix.getValue(p);
+		}
+		return weight;
+	}
+
+	/**
+	 * Release the matrix made by the last train(DataSet), which is about to be replaced
+	 */
+	private void closeDataMatrix() {
+		if (data_matrix == null) {
+			return;
+		}
+		try {
+			data_matrix.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			data_matrix = null;
+		}
+	}
+
+	/**
+	 * Classify by descending the centroid tree
+	 */
+	public double classify(Example example) {
+		return cluster_labels[getClusterIndex(example)];
+	}
+
+	/**
+	 * Classify by comparing against all of the flat (leaf) centroids, like KMeansClassifier does
+	 * @param example
+	 * @return
+	 */
+	public double classifyFlat(Example example) {
+		return cluster_labels[getFlatClusterIndex(example)];
+	}
+
+	public double confidence(Example example) {
+		return 0;
+	}
+
+	/**
+	 * Find the flat cluster of an example by descending the tree, at each node moving to the more similar child
+	 * @param example
+	 * @return
+	 */
+	public int getClusterIndex(Example example) {
+		int[] indices = new int[example.getFeatureSet().size()];
+		double[] values = new double[indices.length];
+		int length = weight(example, indices, values);
+
+		int node = 0;
+		while (left_child[node] != -1) {
+			// the example's own magnitude is the same on both sides, so it can be left out
+			int left = left_child[node];
+			int right = right_child[node];
+			double cos_left = node_centroids[left].dot(values, indices, length) / node_centroids[left].norm;
+			double cos_right = node_centroids[right].dot(values, indices, length) / node_centroids[right].norm;
+			node = cos_right > cos_left ? right : left;
+		}
+		return node_cluster[node];
+	}
+
+	/**
+	 * Find the flat cluster of an example by comparing against every leaf centroid
+	 * @param example
+	 * @return
+	 */
+	public int getFlatClusterIndex(Example example) {
+		int[] indices = new int[example.getFeatureSet().size()];
+		double[] values = new double[indices.length];
+		int length = weight(example, indices, values);
+
+		double max_cos = -Double.MAX_VALUE;
+		int closest = 0;
+		for (int c = 0; c < leaf_nodes.length; c++) {
+			NodeCentroid centroid = node_centroids[leaf_nodes[c]];
+			double cos = centroid.dot(values, indices, length) / centroid.norm;
+			if (cos > max_cos) {
+				max_cos = cos;
+				closest = c;
+			}
+		}
+		return closest;
+	}
+
+	/**
+	 * Put the tf/idf weights of the example's features into indices and values (without changing the example)
+	 * @return the number of features
+	 */
+	private int weight(Example example, int[] indices, double[] values) {
+		int length = 0;
+		for (int f : example.getFeatureSet()) {
+			if (f < idf_vector.length) {
+				indices[length] = f;
+				values[length] = example.getFeature(f) / idf_vector[f];
+				length++;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @param cluster a flat cluster
+	 * @return the majority label of the cluster (what classify predicts for its examples)
+	 */
+	public double getClusterLabel(int cluster) {
+		return cluster_labels[cluster];
+	}
+
+	/**
+	 * @return the number of flat clusters (less than k if some clusters couldn't be split)
+	 */
+	public int getNumClusters() {
+		return leaf_nodes.length;
+	}
+
+	/**
+	 * @return the flat cluster of each row of the training matrix
+	 */
+	public int[] getAssignments() {
+		return assignments;
+	}
+
+	/**
+	 * Evaluate the flat clustering against the true labels
+	 * @param num_threads
+	 * @return
+	 */
+	public ClusterEvaluation evaluate(int num_threads) {
+		double[] labels = new double[assignments.length];
+		for (int row = 0; row < labels.length; row++) {
+			labels[row] = matrix.getLabel(row);
+		}
+		return new ClusterEvaluation(assignments, labels, leaf_nodes.length, num_threads);
+	}
+
+	/**
+	 * A node's centroid. A node only covers the rows under it, so below the first few levels of the tree most
+	 * features are zero; those centroids keep just their non-zero features, in an open addressing hash table so
+	 * looking a feature up is about as cheap as indexing a dense row. Centroids where that wouldn't save memory
+	 * keep every feature, as in a CentroidMatrix.
+	 */
+	private static class NodeCentroid {
+		private final int[] features; // hash table of the non-zero features, -1 in empty slots (null if every feature is kept)
+		private final int shift; // 32 - log2 of the table size
+		private final double[] double_values; // value of each slot (or feature); null in single precision mode
+		private final float[] float_values; // null in double precision mode
+		private final double norm;
+		private final Kernels kernels;
+
+		/**
+		 * Copy one of the centroids in a CentroidMatrix
+		 * @param centroids
+		 * @param centroid
+		 * @param kernels the arithmetic to use for centroids that keep every feature
+		 */
+		NodeCentroid(CentroidMatrix centroids, int centroid, Kernels kernels) {
+			int num_features = centroids.numFeatures();
+			boolean single_precision = centroids.isSinglePrecision();
+			int non_zero = 0;
+			for (int f = 0; f < num_features; f++) {
+				if (centroids.get(centroid, f) != 0) {
+					non_zero++;
+				}
+			}
+			// at most 2/3 full, and at least 2 slots so shift stays below 32
+			int table_size = Integer.highestOneBit(Math.max(1, non_zero + non_zero / 2)) << 1;
+			int value_bytes = single_precision ? 4 : 8;
+			boolean sparse = (long) table_size * (4 + value_bytes) < (long) num_features * value_bytes;
+			int length = sparse ? table_size : num_features;
+			features = sparse ? new int[length] : null;
+			shift = 32 - Integer.numberOfTrailingZeros(table_size);
+			double_values = single_precision ? null : new double[length];
+			float_values = single_precision ? new float[length] : null;
+			if (sparse) {
+				Arrays.fill(features, -1);
+			}
+			for (int f = 0; f < num_features; f++) {
+				double value = centroids.get(centroid, f);
+				int slot = f;
+				if (sparse) {
+					if (value == 0) {
+						continue;
+					}
+					slot = slot(f);
+					while (features[slot] != -1) {
+						slot = (slot + 1) & (length - 1);
+					}
+					features[slot] = f;
+				}
+				if (float_values != null) {
+					float_values[slot] = (float) value;
+				}
+				else {
+					double_values[slot] = value;
+				}
+			}
+			norm = centroids.norm(centroid);
+			this.kernels = kernels;
+		}
+
+		/**
+		 * The first slot of the hash table to look for a feature in
+		 */
+		private int slot(int feature) {
+			return (feature * 0x9E3779B9) >>> shift;
+		}
+
+		/**
+		 * Dot product with a sparse vector
+		 * @param values
+		 * @param indices
+		 * @param length
+		 * @return
+		 */
+		double dot(double[] values, int[] indices, int length) {
+			if (features == null) {
+				if (float_values != null) {
+					return kernels.sparseDot(values, indices, length, float_values, 0);
+				}
+				return kernels.sparseDot(values, indices, length, double_values, 0);
+			}
+			int mask = features.length - 1;
+			double dot_product = 0;
+			for (int i = 0; i < length; i++) {
+				int f = indices[i];
+				for (int slot = slot(f); features[slot] != -1; slot = (slot + 1) & mask) {
+					if (features[slot] == f) {
+						dot_product += values[i] * (float_values != null ? float_values[slot] : double_values[slot]);
+						break;
+					}
+				}
+			}
+			return dot_product;
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package ml.classifiers;
+
+/**
+ * Dense storage for k centroids over a fixed number of features, along with the
+ * magnitude of each centroid.  The values are stored row-major in a single array,
+ * either as doubles or (to halve the memory) as floats.  Either way, values go in
+ * and come out as doubles so all of the arithmetic is still done in double precision.
+ * 
+ * Optionally the values are stored by feature instead (the k values of each feature together), which
+ * lets a sparse vector be scored against every centroid in one pass (dots).  There is only ever one copy
+ * of the values, so the float mode takes half the memory in either layout.
+ */
+class CentroidMatrix {
+	private final int num_centroids;
+	private final int num_features;
+	private final double[] double_values; // null in single precision mode
+	private final float[] float_values; // null in double precision mode
+	private final boolean by_feature; // whether the values are stored by feature rather than by centroid
+	private final double[] norms; // magnitude of each centroid
+	private final Kernels kernels;
+	
+	/**
+	 * @param num_centroids
+	 * @param num_features
+	 * @param single_precision whether to store the values as floats
+	 * @param kernels the arithmetic to use
+	 */
+	public CentroidMatrix(int num_centroids, int num_features, boolean single_precision, Kernels kernels) {
+		this(num_centroids, num_features, single_precision, kernels, false);
+	}
+	
+	/**
+	 * @param num_centroids
+	 * @param num_features
+	 * @param single_precision whether to store the values as floats
+	 * @param kernels the arithmetic to use
+	 * @param by_feature whether to store the values by feature, for dots
+	 */
+	public CentroidMatrix(int num_centroids, int num_features, boolean single_precision, Kernels kernels, boolean by_feature) {
+		if ((long) num_centroids * num_features > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many centroid values: " + num_centroids + "x" + num_features);
+		}
+		this.num_centroids = num_centroids;
+		this.num_features = num_features;
+		if (single_precision) {
+			float_values = new float[num_centroids * num_features];
+			double_values = null;
+		}
+		else {
+			double_values = new double[num_centroids * num_features];
+			float_values = null;
+		}
+		this.by_feature = by_feature;
+		norms = new double[num_centroids];
+		this.kernels = kernels;
+	}
+	
+	public int numCentroids() { return num_centroids; }
+	public int numFeatures() { return num_features; }
+	public boolean isSinglePrecision() { return float_values != null; }
+	
+	public double get(int centroid, int feature) {
+		int i = by_feature ? feature * num_centroids + centroid : centroid * num_features + feature;
+		return float_values != null ? float_values[i] : double_values[i];
+	}
+	
+	public double norm(int centroid) {
+		return norms[centroid];
+	}
+	
+	/**
+	 * Dot product of a centroid with a sparse vector
+	 * @param centroid
+	 * @param values the non-zero values of the vector
+	 * @param indices the feature index of each value
+	 * @param length number of non-zero values
+	 * @return
+	 */
+	public double dot(int centroid, double[] values, int[] indices, int length) {
+		if (by_feature) {
+			double sum = 0;
+			for (int i = 0; i < length; i++) {
+				sum += values[i] * get(centroid, indices[i]);
+			}
+			return sum;
+		}
+		int offset = centroid * num_features;
+		if (float_values != null) {
+			return kernels.sparseDot(values, indices, length, float_values, offset);
+		}
+		return kernels.sparseDot(values, indices, length, double_values, offset);
+	}
+	
+	/**
+	 * Dot products of a sparse vector with every centroid. In one pass if the values are stored by feature,
+	 * otherwise it's the same as calling dot for each centroid.
+	 * @param values the non-zero values of the vector
+	 * @param indices the feature index of each value
+	 * @param length number of non-zero values
+	 * @param scores where to put the dot product with each centroid (at least numCentroids() long)
+	 */
+	public void dots(double[] values, int[] indices, int length, double[] scores) {
+		if (by_feature && float_values != null) {
+			kernels.sparseDots(values, indices, length, float_values, num_centroids, scores);
+		}
+		else if (by_feature) {
+			kernels.sparseDots(values, indices, length, double_values, num_centroids, scores);
+		}
+		else {
+			for (int c = 0; c < num_centroids; c++) {
+				scores[c] = dot(c, values, indices, length);
+			}
+		}
+	}
+	
+	/**
+	 * Dot product of a centroid with a dense vector
+	 * @param centroid
+	 * @param values all num_features values of the vector
+	 * @return
+	 */
+	public double dot(int centroid, double[] values) {
+		if (by_feature) {
+			double sum = 0;
+			for (int f = 0; f < num_features; f++) {
+				sum += values[f] * get(centroid, f);
+			}
+			return sum;
+		}
+		int offset = centroid * num_features;
+		if (float_values != null) {
+			return kernels.dot(values, 0, float_values, offset, num_features);
+		}
+		return kernels.dot(values, 0, double_values, offset, num_features);
+	}
+	
+	/**
+	 * Replace a centroid with the given values and recompute its magnitude (from the stored values)
+	 * @param centroid
+	 * @param values
+	 */
+	public void setRow(int centroid, double[] values) {
+		setRow(centroid, values, 1.0);
+	}
+	
+	/**
+	 * Replace a centroid with values * scale (e.g. sums divided by the cluster size) and recompute
+	 * its magnitude (from the stored values)
+	 * @param centroid
+	 * @param values
+	 * @param scale
+	 */
+	public void setRow(int centroid, double[] values, double scale) {
+		double sum = 0;
+		if (by_feature) {
+			// the same rounding as scaleInto, just strided
+			for (int f = 0; f < num_features; f++) {
+				int i = f * num_centroids + centroid;
+				double value;
+				if (float_values != null) {
+					float_values[i] = (float) (values[f] * scale);
+					value = float_values[i];
+				}
+				else {
+					value = values[f] * scale;
+					double_values[i] = value;
+				}
+				sum += value * value;
+			}
+		}
+		else if (float_values != null) {
+			sum = kernels.scaleInto(values, scale, float_values, centroid * num_features, num_features);
+		}
+		else {
+			sum = kernels.scaleInto(values, scale, double_values, centroid * num_features, num_features);
+		}
+		norms[centroid] = Math.sqrt(sum);
+	}
+}
@@ -0,0 +1,27 @@
+package ml.classifiers;
+
+import ml.data.Example;
+
+/**
+ * A trained classifier that puts each example in a cluster and predicts the label of that cluster
+ * (e.g. the k-means classifiers). CrossValidator uses the clusters to measure purity.
+ */
+public interface ClusterAssigner {
+	
+	/**
+	 * @param example
+	 * @return the cluster the example is in, from 0 to getNumClusters()-1
+	 */
+	int getClusterIndex(Example example);
+	
+	/**
+	 * @param cluster
+	 * @return the label predicted for the examples in the cluster
+	 */
+	double getClusterLabel(int cluster);
+	
+	/**
+	 * @return the number of clusters
+	 */
+	int getNumClusters();
+}
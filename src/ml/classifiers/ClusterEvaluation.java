@@ -0,0 +1,342 @@
+package ml.classifiers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Quality measures for a clustering of labeled data.
+ *
+ * A cluster x label contingency table is built once, in a single parallel pass over the assignments,
+ * and purity, normalized mutual information (NMI) and the adjusted Rand index (ARI) are all derived from it.
+ * Silhouette needs distances between points, which is O(n^2), so it is computed on a random sample.
+ */
+public class ClusterEvaluation {
+
+	/**
+	 * Distance between two points, referred to by their index in the assignments
+	 */
+	public interface Distance {
+		double distance(int a, int b);
+	}
+
+	private int[] assignments; // cluster of each point
+	private int num_clusters;
+	private int num_threads;
+	private double[] label_values; // the distinct labels, sorted; column j of the table is label_values[j]
+	private long[][] contingency; // [cluster][label index] -> number of points
+	private long[] cluster_sizes;
+	private long[] label_sizes;
+	private long total;
+
+	/**
+	 * Build the contingency table for a clustering
+	 * @param assignments the cluster (0 to num_clusters-1) of each point
+	 * @param labels the true label of each point
+	 * @param num_clusters
+	 * @param num_threads how many threads to use to count
+	 */
+	public ClusterEvaluation(int[] assignments, double[] labels, int num_clusters, int num_threads) {
+		this.assignments = assignments;
+		this.num_clusters = num_clusters;
+		this.num_threads = Math.max(1, num_threads);
+
+		// each thread counts its own block of points into its own table
+		ArrayList<HashMap<Double, long[]>> partials = runBlocks(assignments.length, (start, end) -> {
+			HashMap<Double, long[]> counts = new HashMap<Double, long[]>();
+			for (int i = start; i < end; i++) {
+				long[] cluster_counts = counts.get(labels[i]);
+				if (cluster_counts == null) {
+					cluster_counts = new long[num_clusters];
+					counts.put(labels[i], cluster_counts);
+				}
+				cluster_counts[assignments[i]]++;
+			}
+			return counts;
+		});
+
+		HashMap<Double, long[]> merged = new HashMap<Double, long[]>();
+		for (HashMap<Double, long[]> partial : partials) {
+			for (Entry<Double, long[]> entry : partial.entrySet()) {
+				long[] cluster_counts = merged.get(entry.getKey());
+				if (cluster_counts == null) {
+					merged.put(entry.getKey(), entry.getValue());
+				}
+				else {
+					for (int c = 0; c < num_clusters; c++) {
+						cluster_counts[c] += entry.getValue()[c];
+					}
+				}
+			}
+		}
+
+		label_values = new double[merged.size()];
+		int j = 0;
+		for (double label : merged.keySet()) {
+			label_values[j++] = label;
+		}
+		Arrays.sort(label_values);
+
+		contingency = new long[num_clusters][label_values.length];
+		cluster_sizes = new long[num_clusters];
+		label_sizes = new long[label_values.length];
+		for (j = 0; j < label_values.length; j++) {
+			long[] cluster_counts = merged.get(label_values[j]);
+			for (int c = 0; c < num_clusters; c++) {
+				contingency[c][j] = cluster_counts[c];
+				cluster_sizes[c] += cluster_counts[c];
+				label_sizes[j] += cluster_counts[c];
+			}
+		}
+		total = assignments.length;
+	}
+
+	/**
+	 * Get the contingency table, indexed by [cluster][label index] (see getLabelValues)
+	 * @return
+	 */
+	public long[][] getContingencyTable() {
+		return contingency;
+	}
+
+	/**
+	 * @return the distinct labels, in the order of the contingency table columns
+	 */
+	public double[] getLabelValues() {
+		return label_values;
+	}
+
+	/**
+	 * The most common label in a cluster (-1 if the cluster is empty)
+	 * @param cluster
+	 * @return
+	 */
+	public double getMajorityLabel(int cluster) {
+		double max_label = -1;
+		long max_count = 0;
+		for (int j = 0; j < label_values.length; j++) {
+			if (contingency[cluster][j] > max_count) {
+				max_label = label_values[j];
+				max_count = contingency[cluster][j];
+			}
+		}
+		return max_label;
+	}
+
+	/**
+	 * Fraction of the points in a cluster that have the majority label (0 if the cluster is empty)
+	 * @param cluster
+	 * @return
+	 */
+	public double getClusterPurity(int cluster) {
+		if (cluster_sizes[cluster] == 0) {
+			return 0;
+		}
+		long max_count = 0;
+		for (int j = 0; j < label_values.length; j++) {
+			max_count = Math.max(max_count, contingency[cluster][j]);
+		}
+		return (double) max_count / cluster_sizes[cluster];
+	}
+
+	/**
+	 * Fraction of all points that have the majority label of their cluster
+	 * @return
+	 */
+	public double getPurity() {
+		long running_sum = 0;
+		for (int c = 0; c < num_clusters; c++) {
+			long max_count = 0;
+			for (int j = 0; j < label_values.length; j++) {
+				max_count = Math.max(max_count, contingency[c][j]);
+			}
+			running_sum += max_count;
+		}
+		return (double) running_sum / total;
+	}
+
+	/**
+	 * Normalized mutual information between the clusters and the labels, I(C;L) / ((H(C) + H(L)) / 2).
+	 * 1 is a perfect match, 0 means the clustering says nothing about the labels.
+	 * @return
+	 */
+	public double getNMI() {
+		double mutual_information = 0;
+		for (int c = 0; c < num_clusters; c++) {
+			for (int j = 0; j < label_values.length; j++) {
+				if (contingency[c][j] > 0) {
+					double joint = (double) contingency[c][j] / total;
+					mutual_information += joint * Math.log((double) contingency[c][j] * total / ((double) cluster_sizes[c] * label_sizes[j]));
+				}
+			}
+		}
+
+		double mean_entropy = (entropy(cluster_sizes) + entropy(label_sizes)) / 2;
+		if (mean_entropy == 0) {
+			return 1.0; // both are a single group, so they agree completely
+		}
+		return mutual_information / mean_entropy;
+	}
+
+	private double entropy(long[] sizes) {
+		double h = 0;
+		for (long size : sizes) {
+			if (size > 0) {
+				double p = (double) size / total;
+				h -= p * Math.log(p);
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Adjusted Rand index: the fraction of pairs of points the clustering and the labels agree on,
+	 * corrected for chance.  1 is a perfect match, around 0 is random.
+	 * @return
+	 */
+	public double getARI() {
+		double index = 0;
+		for (int c = 0; c < num_clusters; c++) {
+			for (int j = 0; j < label_values.length; j++) {
+				index += pairs(contingency[c][j]);
+			}
+		}
+		double cluster_pairs = 0;
+		for (long size : cluster_sizes) {
+			cluster_pairs += pairs(size);
+		}
+		double label_pairs = 0;
+		for (long size : label_sizes) {
+			label_pairs += pairs(size);
+		}
+
+		double expected = cluster_pairs * label_pairs / pairs(total);
+		double max = (cluster_pairs + label_pairs) / 2;
+		if (max == expected) {
+			return 1.0;
+		}
+		return (index - expected) / (max - expected);
+	}
+
+	private static double pairs(long n) {
+		return n * (n - 1) / 2.0;
+	}
+
+	/**
+	 * Mean silhouette of a random sample of the points. Each sampled point is compared against the other
+	 * sampled points only, so this costs O(sample_size^2) distance computations instead of O(n^2).
+	 * Points in singleton clusters (within the sample) get a silhouette of 0.
+	 * @param distance the distance between points
+	 * @param sample_size how many points to sample (all of them if there are fewer)
+	 * @param seed random seed for the sample
+	 * @return the mean silhouette, between -1 and 1
+	 */
+	public double getSilhouette(Distance distance, int sample_size, long seed) {
+		int[] sample = new int[assignments.length];
+		for (int i = 0; i < sample.length; i++) {
+			sample[i] = i;
+		}
+		// partial Fisher-Yates shuffle for the sample
+		int m = Math.min(sample_size, sample.length);
+		Random random = new Random(seed);
+		for (int i = 0; i < m; i++) {
+			int swap = i + random.nextInt(sample.length - i);
+			int tmp = sample[i];
+			sample[i] = sample[swap];
+			sample[swap] = tmp;
+		}
+		final int[] points = Arrays.copyOf(sample, m);
+
+		ArrayList<Double> partial_sums = runBlocks(m, (start, end) -> {
+			double sum = 0;
+			double[] distance_sums = new double[num_clusters];
+			int[] counts = new int[num_clusters];
+			for (int i = start; i < end; i++) {
+				Arrays.fill(distance_sums, 0);
+				Arrays.fill(counts, 0);
+				int own = assignments[points[i]];
+				for (int j = 0; j < m; j++) {
+					if (j != i) {
+						int cluster = assignments[points[j]];
+						distance_sums[cluster] += distance.distance(points[i], points[j]);
+						counts[cluster]++;
+					}
+				}
+				if (counts[own] == 0) {
+					continue;
+				}
+				double a = distance_sums[own] / counts[own];
+				double b = Double.MAX_VALUE;
+				for (int c = 0; c < num_clusters; c++) {
+					if (c != own && counts[c] > 0) {
+						b = Math.min(b, distance_sums[c] / counts[c]);
+					}
+				}
+				if (b != Double.MAX_VALUE) {
+					sum += (b - a) / Math.max(a, b);
+				}
+			}
+			return sum;
+		});
+
+		double sum = 0;
+		for (double partial : partial_sums) {
+			sum += partial;
+		}
+		return m == 0 ? 0 : sum / m;
+	}
+
+	/**
+	 * Work on one block of indices
+	 */
+	private interface Block<T> {
+		T run(int start, int end);
+	}
+
+	/**
+	 * Split 0..n into one block per thread and run them concurrently (with one thread, just run it here)
+	 * @param n
+	 * @param block
+	 * @return the result for each block, in order
+	 */
+	private <T> ArrayList<T> runBlocks(int n, Block<T> block) {
+		if (num_threads == 1) {
+			ArrayList<T> results = new ArrayList<T>();
+			results.add(block.run(0, n));
+			return results;
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(num_threads);
+		try {
+			ArrayList<Future<T>> futures = new ArrayList<Future<T>>();
+			int block_size = (n + num_threads - 1) / num_threads;
+			for (int start = 0; start < n || futures.isEmpty(); start += Math.max(block_size, 1)) {
+				final int block_start = start;
+				final int block_end = Math.min(n, start + block_size);
+				futures.add(pool.submit(() -> block.run(block_start, block_end)));
+			}
+
+			ArrayList<T> results = new ArrayList<T>();
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}
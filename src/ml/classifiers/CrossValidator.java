@@ -0,0 +1,279 @@
+package ml.classifiers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ml.data.CrossValidationSet;
+import ml.data.DataSet;
+import ml.data.DataSetSplit;
+import ml.data.Example;
+import ml.utils.Metrics;
+
+/**
+ * Trains and tests all of the folds of a CrossValidationSet at the same time, on a fixed number of threads.
+ *
+ * Every fold gets a new classifier from the factory and its own copy of its training examples, since
+ * training (e.g. KMeansClassifier's tf/idf weighting) changes them.
+ *
+ * For every fold the report has the accuracy on the test examples, the purity of the test examples' clusters
+ * (for a ClusterAssigner, the cluster it puts each example in; for any other classifier, the
+ * predicted label) and the training and testing times.
+ */
+public class CrossValidator {
+
+	/**
+	 * Makes a new, untrained classifier for each fold, e.g. () -> { KMeansClassifier c = new KMeansClassifier(); c.setK(20); return c; }
+	 */
+	public interface ClassifierFactory {
+		Classifier create();
+	}
+
+	private ClassifierFactory factory;
+	private int num_threads;
+
+	/**
+	 * @param factory makes the classifier for each fold
+	 * @param num_threads how many folds to run at the same time
+	 */
+	public CrossValidator(ClassifierFactory factory, int num_threads) {
+		this.factory = factory;
+		this.num_threads = Math.max(1, num_threads);
+	}
+
+	/**
+	 * Train and test every fold
+	 * @param folds
+	 * @return the results of each fold, in fold order
+	 */
+	public Report run(CrossValidationSet folds) {
+		long start = System.nanoTime();
+		int num_folds = folds.getNumSplits();
+
+		// get the splits up front (on this thread) so the folds only read the shared examples
+		ArrayList<DataSetSplit> splits = new ArrayList<DataSetSplit>(num_folds);
+		for (int i = 0; i < num_folds; i++) {
+			splits.add(folds.getValidationSet(i));
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(num_threads, Math.max(1, num_folds)));
+		try {
+			ArrayList<Future<FoldResult>> futures = new ArrayList<Future<FoldResult>>();
+			for (int i = 0; i < num_folds; i++) {
+				final int fold = i;
+				futures.add(pool.submit(() -> runFold(fold, splits.get(fold))));
+			}
+
+			ArrayList<FoldResult> results = new ArrayList<FoldResult>(num_folds);
+			for (int i = 0; i < num_folds; i++) {
+				try {
+					results.add(futures.get(i).get());
+				}
+				catch (ExecutionException e) {
+					throw new RuntimeException("fold " + i + " failed", e.getCause());
+				}
+			}
+			return new Report(results, System.nanoTime() - start);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Train a new classifier on copies of the fold's training examples and test it on its test examples
+	 */
+	private FoldResult runFold(int fold, DataSetSplit split) {
+		DataSet train = copy(split.getTrain());
+		DataSet test = split.getTest();
+		Classifier classifier = factory.create();
+
+		long start = System.nanoTime();
+		classifier.train(train);
+		long trained = System.nanoTime();
+
+		// clusterers predict the label of an example's cluster, so find the cluster once and look up its label
+		ClusterAssigner assigner = classifier instanceof ClusterAssigner ? (ClusterAssigner) classifier : null;
+
+		ArrayList<Example> examples = test.getData();
+		int[] clusters = new int[examples.size()];
+		double[] labels = new double[examples.size()];
+		HashMap<Double, Integer> predicted_labels = new HashMap<Double, Integer>();
+		int correct = 0;
+		for (int i = 0; i < examples.size(); i++) {
+			Example e = examples.get(i);
+			double prediction;
+			if (assigner != null) {
+				clusters[i] = assigner.getClusterIndex(e);
+				prediction = assigner.getClusterLabel(clusters[i]);
+			}
+			else {
+				prediction = classifier.classify(e);
+				clusters[i] = getLabelCluster(prediction, predicted_labels);
+			}
+			if (prediction == e.getLabel()) {
+				correct++;
+			}
+			labels[i] = e.getLabel();
+		}
+		long tested = System.nanoTime();
+
+		int num_clusters;
+		if (assigner != null) {
+			num_clusters = assigner.getNumClusters();
+		}
+		else {
+			num_clusters = Math.max(1, predicted_labels.size());
+		}
+		double purity = examples.isEmpty() ? 0 : new ClusterEvaluation(clusters, labels, num_clusters, 1).getPurity();
+		double accuracy = examples.isEmpty() ? 0 : (double) correct / examples.size();
+
+		Metrics metrics = Metrics.get();
+		metrics.time("crossvalidation.train", trained - start);
+		metrics.time("crossvalidation.test", tested - trained);
+		return new FoldResult(fold, train.getData().size(), examples.size(), accuracy, purity, trained - start, tested - trained);
+	}
+
+	/**
+	 * The cluster of an example for a classifier that isn't a ClusterAssigner: its predicted label (numbered in the
+	 * order the labels are first predicted)
+	 */
+	private int getLabelCluster(double prediction, HashMap<Double, Integer> predicted_labels) {
+		Integer cluster = predicted_labels.get(prediction);
+		if (cluster == null) {
+			cluster = predicted_labels.size();
+			predicted_labels.put(prediction, cluster);
+		}
+		return cluster;
+	}
+
+	/**
+	 * A new data set with the same features and copies of the examples
+	 */
+	private static DataSet copy(DataSet data) {
+		ArrayList<Example> examples = new ArrayList<Example>(data.getData().size());
+		for (Example e : data.getData()) {
+			examples.add(new Example(e));
+		}
+		DataSet copy = new DataSet(data.getFeatureDictionary());
+		copy.addData(examples);
+		return copy;
+	}
+
+	/**
+	 * The results of one fold
+	 */
+	public static class FoldResult {
+		private int fold;
+		private int train_size;
+		private int test_size;
+		private double accuracy; // fraction of the test examples classified correctly
+		private double purity; // purity of the test examples' clusters
+		private long train_nanos;
+		private long test_nanos;
+
+		public FoldResult(int fold, int train_size, int test_size, double accuracy, double purity, long train_nanos, long test_nanos) {
+			this.fold = fold;
+			this.train_size = train_size;
+			this.test_size = test_size;
+			this.accuracy = accuracy;
+			this.purity = purity;
+			this.train_nanos = train_nanos;
+			this.test_nanos = test_nanos;
+		}
+
+		public int getFold() { return fold; }
+		public int getTrainSize() { return train_size; }
+		public int getTestSize() { return test_size; }
+		public double getAccuracy() { return accuracy; }
+		public double getPurity() { return purity; }
+		public long getTrainNanos() { return train_nanos; }
+		public long getTestNanos() { return test_nanos; }
+
+		public String toString() {
+			return String.format("fold %d: train %d, test %d, accuracy %.4f, purity %.4f, train %.1f ms, test %.1f ms",
+					fold, train_size, test_size, accuracy, purity, train_nanos / 1e6, test_nanos / 1e6);
+		}
+	}
+
+	/**
+	 * The results of all of the folds
+	 */
+	public static class Report {
+		private ArrayList<FoldResult> folds;
+		private long wall_nanos; // time from the start of run until the last fold finished
+
+		public Report(ArrayList<FoldResult> folds, long wall_nanos) {
+			this.folds = folds;
+			this.wall_nanos = wall_nanos;
+		}
+
+		public ArrayList<FoldResult> getFolds() {
+			return folds;
+		}
+
+		public long getWallNanos() {
+			return wall_nanos;
+		}
+
+		/**
+		 * @return the total time spent training and testing, summed over the folds (what running them one after another would take)
+		 */
+		public long getTotalNanos() {
+			long total = 0;
+			for (FoldResult f : folds) {
+				total += f.getTrainNanos() + f.getTestNanos();
+			}
+			return total;
+		}
+
+		public double getMeanAccuracy() {
+			double sum = 0;
+			for (FoldResult f : folds) {
+				sum += f.getAccuracy();
+			}
+			return folds.isEmpty() ? 0 : sum / folds.size();
+		}
+
+		/**
+		 * @return the sample standard deviation of the fold accuracies
+		 */
+		public double getAccuracyStdDev() {
+			if (folds.size() < 2) {
+				return 0;
+			}
+			double mean = getMeanAccuracy();
+			double sum = 0;
+			for (FoldResult f : folds) {
+				sum += (f.getAccuracy() - mean) * (f.getAccuracy() - mean);
+			}
+			return Math.sqrt(sum / (folds.size() - 1));
+		}
+
+		public double getMeanPurity() {
+			double sum = 0;
+			for (FoldResult f : folds) {
+				sum += f.getPurity();
+			}
+			return folds.isEmpty() ? 0 : sum / folds.size();
+		}
+
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			for (FoldResult f : folds) {
+				builder.append(f);
+				builder.append('\n');
+			}
+			builder.append(String.format("accuracy %.4f (+/- %.4f), purity %.4f, wall %.1f ms, total %.1f ms",
+					getMeanAccuracy(), getAccuracyStdDev(), getMeanPurity(), wall_nanos / 1e6, getTotalNanos() / 1e6));
+			return builder.toString();
+		}
+	}
+}
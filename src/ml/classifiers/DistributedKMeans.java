@@ -0,0 +1,627 @@
+package ml.classifiers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ml.data.FeatureDictionary;
+import ml.data.ParallelTextDataReader;
+import ml.data.SparseMatrix;
+import ml.utils.Metrics;
+import ml.utils.events.KMeansIterationEvent;
+
+/**
+ * Data-parallel k-means over several processes (JVMs), for text files that are too big for one.
+ *
+ * A coordinator splits the text file (in TextDataReader's format, on a file system all of the processes can see)
+ * into one byte range per worker, and each worker reads and keeps only the lines in its range. The workers
+ * number their own words, and the coordinator merges the word lists in file order, so every process ends up
+ * with the same feature numbering that TextDataReader would give. After that only summaries go over the network:
+ * - the count of every feature (to compute the idf values, which the coordinator sends back)
+ * - for the farthest-first initialization, each worker's farthest row from the centroids chosen so far
+ * - each iteration, the coordinator sends the centroids and each worker assigns its rows and sends back
+ *   whether any moved, plus the weighted sum and total weight of its rows in each cluster, which the
+ *   coordinator adds up into the new centroids
+ *
+ * This is the same algorithm as KMeansClassifier.train(SparseMatrix) (and gives the same clustering up to
+ * rounding in the sums). The protocol is plain binary over one socket per worker, see main for running the
+ * workers as local JVMs.
+ *
+ * Nothing waits forever: if a worker doesn't connect within the connect timeout, or the other side of a socket
+ * doesn't reply within the read timeout, the run fails with an IOException that says which process was waited on.
+ */
+public class DistributedKMeans {
+
+	// commands from the coordinator to the workers
+	private static final int GET_ROW = 1;
+	private static final int FARTHEST = 2;
+	private static final int ASSIGN = 3;
+	private static final int FINISH = 4;
+
+	// default timeouts, in milliseconds
+	public static final int DEFAULT_CONNECT_TIMEOUT = 60 * 1000;
+	public static final int DEFAULT_READ_TIMEOUT = 10 * 60 * 1000; // a worker reads its whole partition before its first reply
+
+	private int k; // number of clusters
+	private int numIterations; // maximum number of iterations
+	private int connect_timeout = DEFAULT_CONNECT_TIMEOUT; // how long to wait for each worker to connect (0 waits forever)
+	private int read_timeout = DEFAULT_READ_TIMEOUT; // how long to wait for any reply from a worker (0 waits forever)
+
+	private int[] assignments; // cluster of every row, in file order (after train)
+	private double[] labels; // label of every row, in file order
+
+	public DistributedKMeans(int k, int numIterations) {
+		this.k = k;
+		this.numIterations = numIterations;
+	}
+
+	public void setConnectTimeout(int millis) { this.connect_timeout = millis; }
+	public void setReadTimeout(int millis) { this.read_timeout = millis; }
+
+	/**
+	 * Wait for num_workers workers to connect and then cluster the text file with them
+	 * @param text_file the examples, in TextDataReader's format
+	 * @param num_workers number of workers (and partitions of the file)
+	 * @param server where the workers connect
+	 * @return the trained model
+	 * @throws IOException if a worker doesn't connect or reply in time, or the connection fails
+	 */
+	public KMeansModel train(String text_file, int num_workers, ServerSocket server) throws IOException {
+		ArrayList<Socket> sockets = new ArrayList<Socket>();
+		ArrayList<DataInputStream> ins = new ArrayList<DataInputStream>();
+		ArrayList<DataOutputStream> outs = new ArrayList<DataOutputStream>();
+		try {
+			String path = new File(text_file).getAbsolutePath();
+			long file_size = new File(text_file).length();
+			int server_timeout = server.getSoTimeout(); // the caller's, put back once everyone has connected
+			server.setSoTimeout(connect_timeout);
+			try {
+				for (int w = 0; w < num_workers; w++) {
+					Socket socket;
+					try {
+						socket = server.accept();
+					}
+					catch (SocketTimeoutException e) {
+						throw new IOException("Only " + w + " of " + num_workers + " workers connected within " + connect_timeout + "ms", e);
+					}
+					sockets.add(socket);
+					socket.setSoTimeout(read_timeout);
+					String name = "worker " + w + " (" + socket.getRemoteSocketAddress() + ")";
+					ins.add(new DataInputStream(new BufferedInputStream(withTimeoutMessage(socket.getInputStream(), name, read_timeout))));
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+					outs.add(out);
+					out.writeUTF(path);
+					out.writeLong(file_size * w / num_workers);
+					out.writeLong(file_size * (w + 1) / num_workers);
+					out.flush();
+				}
+			}
+			finally {
+				server.setSoTimeout(server_timeout);
+			}
+			return train(ins, outs, path);
+		}
+		finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+
+	private KMeansModel train(ArrayList<DataInputStream> ins, ArrayList<DataOutputStream> outs, String path) throws IOException {
+		int num_workers = ins.size();
+
+		// merge the workers' words, in file order
+		FeatureDictionary.Builder dictionary = new FeatureDictionary.Builder();
+		int[][] remaps = new int[num_workers][];
+		long[] num_rows = new long[num_workers];
+		for (int w = 0; w < num_workers; w++) {
+			DataInputStream in = ins.get(w);
+			num_rows[w] = in.readLong();
+			remaps[w] = new int[in.readInt()];
+			for (int i = 0; i < remaps[w].length; i++) {
+				remaps[w][i] = dictionary.add(in.readUTF());
+			}
+		}
+		int num_features = dictionary.size();
+		for (int w = 0; w < num_workers; w++) {
+			DataOutputStream out = outs.get(w);
+			out.writeInt(num_features);
+			writeInts(out, remaps[w]);
+			out.flush();
+		}
+
+		// idf values from the total count of each feature
+		double[] counts = new double[num_features];
+		long total_rows = 0;
+		for (int w = 0; w < num_workers; w++) {
+			double[] worker_counts = readDoubles(ins.get(w), num_features);
+			for (int f = 0; f < num_features; f++) {
+				counts[f] += worker_counts[f];
+			}
+			total_rows += num_rows[w];
+		}
+		if (total_rows == 0) {
+			throw new IOException("The workers didn't find any examples in " + path);
+		}
+		double[] idf_vector = new double[num_features];
+		for (int f = 0; f < num_features; f++) {
+			idf_vector[f] = Math.log(total_rows / counts[f]);
+		}
+		broadcast(outs, idf_vector);
+
+		// farthest-first initialization, starting with the first row of the file
+		CentroidMatrix centroids = new CentroidMatrix(k, num_features, false, Kernels.get(), true);
+		double[] dense = new double[num_features];
+		int first_worker = 0;
+		while (num_rows[first_worker] == 0) {
+			first_worker++;
+		}
+		getRow(ins.get(first_worker), outs.get(first_worker), 0, dense);
+		centroids.setRow(0, dense);
+		for (int i = 1; i < k; i++) {
+			getCentroid(centroids, i - 1, dense);
+			for (DataOutputStream out : outs) {
+				out.writeInt(FARTHEST);
+				writeDoubles(out, dense);
+				out.flush();
+			}
+			double max_distance = Double.MAX_VALUE;
+			int farthest_worker = first_worker;
+			int farthest_row = 0;
+			for (int w = 0; w < num_workers; w++) {
+				double worker_distance = ins.get(w).readDouble();
+				int worker_row = ins.get(w).readInt();
+				if (worker_row >= 0 && worker_distance < max_distance) {
+					max_distance = worker_distance;
+					farthest_worker = w;
+					farthest_row = worker_row;
+				}
+			}
+			getRow(ins.get(farthest_worker), outs.get(farthest_worker), farthest_row, dense);
+			centroids.setRow(i, dense);
+		}
+
+		// iterate: send the centroids, the workers assign their rows and send back the sums for each cluster
+		double[][] sums = new double[k][num_features];
+		double[] weights = new double[k];
+		boolean changed = assign(ins, outs, centroids, sums, weights, dense);
+		int iterations = 0;
+		while (changed && iterations < numIterations) {
+			KMeansIterationEvent event = new KMeansIterationEvent();
+			event.begin();
+			long start = System.nanoTime();
+			for (int c = 0; c < k; c++) {
+				if (weights[c] > 0) {
+					centroids.setRow(c, sums[c], 1.0 / weights[c]);
+				}
+			}
+			long updated = System.nanoTime();
+			changed = assign(ins, outs, centroids, sums, weights, dense);
+			long assigned = System.nanoTime();
+
+			event.iteration = iterations;
+			event.updateNanos = updated - start;
+			event.assignmentNanos = assigned - updated;
+			event.changed = changed;
+			event.commit();
+			Metrics metrics = Metrics.get();
+			metrics.time("kmeans.update", updated - start);
+			metrics.time("kmeans.assignment", assigned - updated);
+			iterations++;
+		}
+
+		// collect the final assignments and labels to find the label of each cluster
+		assignments = new int[(int) total_rows];
+		labels = new double[(int) total_rows];
+		int offset = 0;
+		for (int w = 0; w < num_workers; w++) {
+			DataOutputStream out = outs.get(w);
+			out.writeInt(FINISH);
+			out.flush();
+			DataInputStream in = ins.get(w);
+			for (int row = 0; row < num_rows[w]; row++) {
+				assignments[offset] = in.readInt();
+				labels[offset] = in.readDouble();
+				offset++;
+			}
+		}
+		ClusterEvaluation evaluation = evaluate(1);
+		double[] cluster_labels = new double[k];
+		for (int c = 0; c < k; c++) {
+			cluster_labels[c] = evaluation.getMajorityLabel(c);
+		}
+		return new KMeansModel(centroids, idf_vector, cluster_labels);
+	}
+
+	/**
+	 * Send the centroids to all of the workers and add up the sums and weights they send back
+	 * @return whether any row changed clusters
+	 */
+	private boolean assign(ArrayList<DataInputStream> ins, ArrayList<DataOutputStream> outs, CentroidMatrix centroids,
+			double[][] sums, double[] weights, double[] dense) throws IOException {
+		for (DataOutputStream out : outs) {
+			out.writeInt(ASSIGN);
+			out.writeInt(k);
+		}
+		for (int c = 0; c < k; c++) {
+			getCentroid(centroids, c, dense);
+			broadcast(outs, dense);
+		}
+
+		boolean changed = false;
+		for (int c = 0; c < k; c++) {
+			Arrays.fill(sums[c], 0);
+		}
+		Arrays.fill(weights, 0);
+		for (DataInputStream in : ins) {
+			changed |= in.readBoolean();
+			for (int c = 0; c < k; c++) {
+				weights[c] += in.readDouble();
+				int length = in.readInt();
+				for (int i = 0; i < length; i++) {
+					int f = in.readInt();
+					sums[c][f] += in.readDouble();
+				}
+			}
+		}
+		return changed;
+	}
+
+	private static void getRow(DataInputStream in, DataOutputStream out, int row, double[] dense) throws IOException {
+		out.writeInt(GET_ROW);
+		out.writeInt(row);
+		out.flush();
+		Arrays.fill(dense, 0);
+		int length = in.readInt();
+		for (int i = 0; i < length; i++) {
+			int f = in.readInt();
+			dense[f] = in.readDouble();
+		}
+	}
+
+	private static void getCentroid(CentroidMatrix centroids, int c, double[] dense) {
+		for (int f = 0; f < dense.length; f++) {
+			dense[f] = centroids.get(c, f);
+		}
+	}
+
+	private static void broadcast(ArrayList<DataOutputStream> outs, double[] values) throws IOException {
+		for (DataOutputStream out : outs) {
+			writeDoubles(out, values);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Get the cluster of every row from the last call to train, in file order
+	 * @return
+	 */
+	public int[] getAssignments() {
+		return assignments;
+	}
+
+	/**
+	 * Evaluate the clustering from the last call to train against the true labels
+	 * @param num_threads
+	 * @return
+	 */
+	public ClusterEvaluation evaluate(int num_threads) {
+		return new ClusterEvaluation(assignments, labels, k, num_threads);
+	}
+
+	/**
+	 * Connect to a coordinator and work on the partition of the file it hands out until it's done, with the
+	 * default timeouts
+	 * @param host
+	 * @param port
+	 * @throws IOException
+	 */
+	public static void runWorker(String host, int port) throws IOException {
+		runWorker(host, port, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+	}
+
+	/**
+	 * Connect to a coordinator and work on the partition of the file it hands out until it's done
+	 * @param host
+	 * @param port
+	 * @param connect_timeout how long to try to connect, in milliseconds (0 waits forever)
+	 * @param read_timeout how long to wait for each command from the coordinator, in milliseconds (0 waits forever)
+	 * @throws IOException if the coordinator can't be reached or doesn't send a command in time
+	 */
+	public static void runWorker(String host, int port, int connect_timeout, int read_timeout) throws IOException {
+		try (Socket socket = new Socket()) {
+			try {
+				socket.connect(new InetSocketAddress(host, port), connect_timeout);
+			}
+			catch (SocketTimeoutException e) {
+				throw new IOException("Couldn't connect to the coordinator at " + host + ":" + port + " within " + connect_timeout + "ms", e);
+			}
+			socket.setSoTimeout(read_timeout);
+			String name = "the coordinator (" + host + ":" + port + ")";
+			DataInputStream in = new DataInputStream(new BufferedInputStream(withTimeoutMessage(socket.getInputStream(), name, read_timeout)));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			new Worker(in, out).run();
+		}
+	}
+
+	/**
+	 * One partition of the file, and the worker side of the protocol
+	 */
+	private static class Worker {
+		private DataInputStream in;
+		private DataOutputStream out;
+
+		private SparseMatrix matrix;
+		private double[] row_norms;
+		private double[] max_cos; // for the farthest-first initialization
+		private int[] assignments;
+		private final RowBuffer row_buffer = new RowBuffer(); // scratch space for the current row
+
+		public Worker(DataInputStream in, DataOutputStream out) {
+			this.in = in;
+			this.out = out;
+		}
+
+		public void run() throws IOException {
+			String text_file = in.readUTF();
+			long start = in.readLong();
+			long end = in.readLong();
+			// the partition's lines, with the words numbered locally until the coordinator sends the global numbers
+			ParallelTextDataReader.Chunk lines = ParallelTextDataReader.readLines(text_file, start, end);
+
+			out.writeLong(lines.size());
+			out.writeInt(lines.numWords());
+			for (int i = 0; i < lines.numWords(); i++) {
+				out.writeUTF(lines.getWord(i));
+			}
+			out.flush();
+
+			int num_features = in.readInt();
+			lines.setRemap(readInts(in, lines.numWords()));
+			matrix = new SparseMatrix(null);
+			lines.addTo(matrix);
+			lines = null;
+
+			double[] counts = new double[num_features];
+			for (long p = 0; p < matrix.numNonZero(); p++) {
+				counts[matrix.getIndex(p)] += matrix.getValue(p);
+			}
+			writeDoubles(out, counts);
+			out.flush();
+
+			double[] idf_vector = readDoubles(in, num_features);
+			KMeansClassifier.initialize_tfidf_values(matrix, idf_vector);
+			row_norms = KMeansClassifier.getRowNorms(matrix);
+			max_cos = new double[row_norms.length];
+			Arrays.fill(max_cos, Double.MIN_VALUE);
+			assignments = new int[row_norms.length];
+			Arrays.fill(assignments, -1);
+
+			CentroidMatrix centroids = null;
+			double[] dense = new double[num_features];
+			while (true) {
+				int command = in.readInt();
+				if (command == GET_ROW) {
+					int row = in.readInt();
+					int length = row_buffer.load(matrix, row);
+					out.writeInt(length);
+					for (int i = 0; i < length; i++) {
+						out.writeInt(row_buffer.indices[i]);
+						out.writeDouble(row_buffer.values[i]);
+					}
+				}
+				else if (command == FARTHEST) {
+					CentroidMatrix centroid = new CentroidMatrix(1, num_features, false, Kernels.get());
+					centroid.setRow(0, readDoubles(in, num_features));
+					int farthest_row = KMeansClassifier.getFarthestRow(matrix, row_buffer, row_norms, centroid, 0, max_cos);
+					out.writeDouble(farthest_row >= 0 ? max_cos[farthest_row] : Double.MAX_VALUE);
+					out.writeInt(farthest_row);
+				}
+				else if (command == ASSIGN) {
+					int k = in.readInt();
+					if (centroids == null) {
+						centroids = new CentroidMatrix(k, num_features, false, Kernels.get(), true);
+					}
+					for (int c = 0; c < k; c++) {
+						centroids.setRow(c, readDoubles(in, num_features));
+					}
+					assign(centroids, dense);
+				}
+				else if (command == FINISH) {
+					for (int row = 0; row < assignments.length; row++) {
+						out.writeInt(assignments[row]);
+						out.writeDouble(matrix.getLabel(row));
+					}
+					out.flush();
+					matrix.close();
+					return;
+				}
+				out.flush();
+			}
+		}
+
+		/**
+		 * Assign every row to its closest centroid and send back whether any moved, and for each cluster
+		 * the total weight and the (sparse) weighted sum of its rows
+		 */
+		private void assign(CentroidMatrix centroids, double[] sum) throws IOException {
+			int k = centroids.numCentroids();
+			double[] scores = new double[k];
+			boolean changed = false;
+			for (int row = 0; row < assignments.length; row++) {
+				int length = row_buffer.load(matrix, row);
+				centroids.dots(row_buffer.values, row_buffer.indices, length, scores);
+				double max_cos = -1;
+				int closest = 0;
+				for (int c = 0; c < k; c++) {
+					double cos = scores[c] / (row_norms[row] * centroids.norm(c));
+					if (cos > max_cos) {
+						max_cos = cos;
+						closest = c;
+					}
+				}
+				if (closest != assignments[row]) {
+					assignments[row] = closest;
+					changed = true;
+				}
+			}
+			out.writeBoolean(changed);
+
+			int[] starts = new int[k + 1];
+			int[] rows_by_cluster = KMeansClassifier.sortRowsByCluster(assignments, k, starts);
+			for (int c = 0; c < k; c++) {
+				Arrays.fill(sum, 0);
+				double total_weight = KMeansClassifier.addRows(matrix, rows_by_cluster, starts[c], starts[c + 1], sum);
+				int length = 0;
+				for (int f = 0; f < sum.length; f++) {
+					if (sum[f] != 0) {
+						length++;
+					}
+				}
+				out.writeDouble(total_weight);
+				out.writeInt(length);
+				for (int f = 0; f < sum.length; f++) {
+					if (sum[f] != 0) {
+						out.writeInt(f);
+						out.writeDouble(sum[f]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wrap a socket's stream so a read timeout says who didn't reply
+	 * @param in
+	 * @param name the process on the other end of the socket
+	 * @param read_timeout the socket's read timeout, in milliseconds
+	 * @return
+	 */
+	private static InputStream withTimeoutMessage(InputStream in, final String name, final int read_timeout) {
+		return new FilterInputStream(in) {
+			public int read() throws IOException {
+				try {
+					return super.read();
+				}
+				catch (SocketTimeoutException e) {
+					throw timedOut(e);
+				}
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				try {
+					return super.read(b, off, len);
+				}
+				catch (SocketTimeoutException e) {
+					throw timedOut(e);
+				}
+			}
+
+			private IOException timedOut(SocketTimeoutException e) {
+				return new IOException(name + " didn't reply within " + read_timeout + "ms", e);
+			}
+		};
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static int[] readInts(DataInputStream in, int length) throws IOException {
+		int[] values = new int[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	private static double[] readDoubles(DataInputStream in, int length) throws IOException {
+		double[] values = new double[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+
+	/**
+	 * Run a coordinator or a worker:
+	 *   DistributedKMeans coordinator <text file> <k> <iterations> <num workers> <port>
+	 *   DistributedKMeans worker <host> <port>
+	 *   DistributedKMeans local <text file> <k> <iterations> <num workers>
+	 * local starts the workers as separate JVMs on this machine (with the same classpath and JVM options, e.g. -Xmx
+	 * and --add-modules, except for debugger agents and flight recordings) and prints the purity.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 3 && args[0].equals("worker")) {
+			runWorker(args[1], Integer.parseInt(args[2]));
+			return;
+		}
+		if ((args.length >= 6 && args[0].equals("coordinator")) || (args.length >= 5 && args[0].equals("local"))) {
+			int num_workers = Integer.parseInt(args[4]);
+			int port = args[0].equals("coordinator") ? Integer.parseInt(args[5]) : 0;
+			DistributedKMeans coordinator = new DistributedKMeans(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+			try (ServerSocket server = new ServerSocket(port)) {
+				ArrayList<Process> workers = new ArrayList<Process>();
+				if (args[0].equals("local")) {
+					ArrayList<String> command = new ArrayList<String>();
+					command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+					for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+						// a debugger agent or a recording would clash (same port, same file) between the JVMs
+						if (!option.startsWith("-agentlib:jdwp") && !option.startsWith("-Xrunjdwp") && !option.contains("StartFlightRecording")) {
+							command.add(option);
+						}
+					}
+					command.add("-cp");
+					command.add(System.getProperty("java.class.path"));
+					command.add(DistributedKMeans.class.getName());
+					command.add("worker");
+					command.add("localhost");
+					command.add(Integer.toString(server.getLocalPort()));
+					for (int w = 0; w < num_workers; w++) {
+						workers.add(new ProcessBuilder(command).inheritIO().start());
+					}
+				}
+				try {
+					long start = System.nanoTime();
+					coordinator.train(args[1], num_workers, server);
+					System.out.println("Trained in " + (System.nanoTime() - start) / 1000000 + "ms, purity: "
+							+ coordinator.evaluate(1).getPurity());
+					for (Process worker : workers) {
+						worker.waitFor();
+					}
+				}
+				finally {
+					// don't leave workers behind if the run failed
+					for (Process worker : workers) {
+						worker.destroy();
+					}
+				}
+			}
+			return;
+		}
+		System.err.println("DistributedKMeans coordinator <text file> <k> <iterations> <num workers> <port>");
+		System.err.println("DistributedKMeans worker <host> <port>");
+		System.err.println("DistributedKMeans local <text file> <k> <iterations> <num workers>");
+	}
+}
@@ -1,35 +1,112 @@
 package ml.classifiers;
+import java.io.IOException;
 import java.lang.reflect.Array;
+import java.net.ServerSocket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
+import ml.data.Coreset;
 import ml.data.DataSet;
 import ml.data.Example;
+import ml.data.RandomProjection;
+import ml.data.SparseMatrix;
+import ml.utils.Metrics;
+import ml.utils.events.ClassifyEvent;
+import ml.utils.events.IDFEvent;
+import ml.utils.events.KMeansIterationEvent;
 
-public class KMeansClassifier implements Classifier {
+public class KMeansClassifier implements Classifier, ClusterAssigner {
 
 	private int k; // number of clusters
 	private int numIterations; // number of iterations
 	private ArrayList<Example> centroids;
 	public HashMap<Integer, ArrayList<Example>> clusters; // hashmap from centroid index (in centroids array) to arraylist of examples representing the cluster
 	private ArrayList<Example> examples; // array list of examples
-	private Set<Integer> data_featureset; //consider using ArrayList for this
+	private int num_data_features; // the features of the DataSet are 0 to num_data_features - 1
 	private HashMap<Integer, Double> idf_hash; //hash from a feature number to its idf value
 	
 	private boolean clustering_changed; // boolean representing whether or not the clustering has changed during each iteration
 	
+	// State used when training on an off-heap SparseMatrix instead of a DataSet
+	private SparseMatrix matrix;
+	private SparseMatrix projected_matrix; // the projected rows made by the last train(SparseMatrix), if any (closed when replaced)
+	private CentroidMatrix centroid_matrix; // dense centroids (null when trained on a DataSet)
+	private double[] row_norms; // magnitude of each (tf/idf) row of the matrix
+	private double[] idf_vector; // idf value for each feature index
+	private int[] assignments; // cluster index of each row of the matrix
+	private double[] cluster_labels; // majority label of each cluster
+	private ClusterEvaluation evaluation; // of the clustering from the last train, once evaluate has built it
+	private boolean trained_distributed = false; // whether the last train was trainDistributed (which only keeps the model)
+	private boolean single_precision = false; // whether to store the centroids as floats
+	private Kernels kernels = Kernels.get(); // the arithmetic for the dense centroids (SIMD when available)
+	private final RowBuffer row_buffer = new RowBuffer(); // scratch space for the current row of the matrix
+	private boolean dense_rows = false; // whether the matrix stores dense rows (projections, see SparseMatrix.dense)
+	// Which clusters changed, so centroids whose members didn't change aren't recomputed and
+	// points are only re-scored against the centroids that moved (the rest come from a cache)
+	private boolean[] membership_changed; // whether each cluster gained or lost members since its centroid was computed
+	private boolean[] centroid_changed; // whether each centroid changed in the last update
+	private int num_centroids_changed; // how many of centroid_changed are true
+	private double[] row_scores; // scratch space for the dot products of the current row with every centroid
+	private float[] row_similarities; // cosine of each row of the matrix to each centroid, [row * k + c] (null if over budget)
+	private long similarity_cache_budget = Runtime.getRuntime().maxMemory() / 4; // most bytes row_similarities (or example_similarities) may take
+	private IdentityHashMap<Example, double[]> example_similarities; // cosine of each example to each centroid (null if over budget)
+	private int coreset_size = 0; // if > 0, train(SparseMatrix) clusters a coreset with this many draws
+	private int projection_dimension = 0; // if > 0, train(SparseMatrix) clusters random projections with this many dimensions
+	private long seed = 451; // random seed for the coreset and the projection
+	
+	// The model from the last call to train, used by classify. Each train publishes a new immutable
+	// model when it finishes, so classify never blocks and never sees a half-trained model.
+	// (train itself should only be called from one thread at a time.)
+	private final AtomicReference<KMeansModel> model = new AtomicReference<KMeansModel>();
+	
 	// Hyperparameters
 	public void setK(int k) { this.k = k; }
 	public void setNumIterations(int n) { this.numIterations = n; }
+	public void setSinglePrecision(boolean single_precision) { this.single_precision = single_precision; }
+	public void setKernels(Kernels kernels) { this.kernels = kernels; }
+	
+	/**
+	 * Cluster a weighted coreset with this many draws instead of all of the rows (0, the default, for none).
+	 * Only train(SparseMatrix) supports this; train(DataSet) throws an IllegalStateException if it's set.
+	 * @param coreset_size
+	 */
+	public void setCoresetSize(int coreset_size) { this.coreset_size = coreset_size; }
+	
+	/**
+	 * Cluster random projections of the rows with this many dimensions (0, the default, for none).
+	 * Only train(SparseMatrix) supports this; train(DataSet) throws an IllegalStateException if it's set.
+	 * @param projection_dimension
+	 */
+	public void setProjectionDimension(int projection_dimension) { this.projection_dimension = projection_dimension; }
+	
+	public void setSeed(long seed) { this.seed = seed; }
+	
+	/**
+	 * How much memory training may use to cache the similarity of every row to every centroid (4 bytes per
+	 * row per centroid for train(SparseMatrix); train(DataSet) takes 8 bytes per example per centroid plus
+	 * about 64 bytes per example). Over the budget, nothing is cached and every row is re-scored against
+	 * every centroid each iteration. The default is a quarter of the maximum heap size; 0 turns the cache off.
+	 * @param bytes
+	 */
+	public void setSimilarityCacheBudget(long bytes) { this.similarity_cache_budget = bytes; }
 	
 	public void train(DataSet data) {
+		if (coreset_size > 0 || projection_dimension > 0) {
+			throw new IllegalStateException("Coresets and random projections are only supported by train(SparseMatrix), e.g. train(SparseMatrix.fromDataSet(data))");
+		}
+		closeProjectedMatrix();
+		centroid_matrix = null;
+		evaluation = null;
+		trained_distributed = false;
 		examples = data.getData();
-		data_featureset = data.getAllFeatureIndices();
+		num_data_features = data.getNumFeatures();
 		centroids = new ArrayList<Example>();
 		clusters = new HashMap<Integer, ArrayList<Example>>();
 		idf_hash = new HashMap<Integer, Double>();
@@ -45,6 +122,10 @@ public class KMeansClassifier implements Classifier {
 //		System.out.println("Initialized IDF hash");
 		
 		initializeMeans();
+		resetChanges();
+		// same budget as the matrix cache: a double[k] and a map entry per example
+		boolean fits = examples.size() * (8.0 * k + 64) <= similarity_cache_budget;
+		example_similarities = fits ? new IdentityHashMap<Example, double[]>(examples.size()) : null;
 		
 		// Initially associate each example with the nearest centroid (cluster them)
 		for ( Example e : examples ) {
@@ -71,11 +152,13 @@ public class KMeansClassifier implements Classifier {
 		while (clustering_changed) {
 			if (iterations >= numIterations) { break; }
 			clustering_changed = false;
-			updateMeans();
-			reassignClusters();
+			runIteration(iterations, false);
 			iterations++;
 		}
 		
+		model.set(getExampleModel());
+		example_similarities = null;
+		
 //		System.out.println("Done iterating! Iterations: "+iterations);
 		
 		// Debugging - print the points in each cluster, and the centroids
@@ -93,6 +176,61 @@ public class KMeansClassifier implements Classifier {
 	
 	}
 	
+	/**
+	 * Runs one iteration: update the means, then reassign the examples (or rows of the matrix).
+	 * The time of each step is reported to JFR and the metrics.
+	 * @param iteration
+	 * @param on_matrix whether training is on a SparseMatrix
+	 */
+	private void runIteration(int iteration, boolean on_matrix) {
+		KMeansIterationEvent event = new KMeansIterationEvent();
+		event.begin();
+		
+		long start = System.nanoTime();
+		if (on_matrix) {
+			updateMatrixMeans();
+		}
+		else {
+			updateMeans();
+		}
+		long updated = System.nanoTime();
+		if (on_matrix) {
+			reassignRows();
+		}
+		else {
+			reassignClusters();
+		}
+		long assigned = System.nanoTime();
+		
+		event.iteration = iteration;
+		event.updateNanos = updated - start;
+		event.assignmentNanos = assigned - updated;
+		event.changed = clustering_changed;
+		event.commit();
+		
+		Metrics metrics = Metrics.get();
+		metrics.time("kmeans.update", updated - start);
+		metrics.time("kmeans.assignment", assigned - updated);
+		if (metrics.isEnabled()) {
+			int num_changed = 0;
+			for (boolean changed : centroid_changed) {
+				if (changed) { num_changed++; }
+			}
+			metrics.record("kmeans.centroids_changed", num_changed);
+		}
+	}
+	
+	/**
+	 * Mark every cluster and centroid as changed (before the first assignment)
+	 */
+	private void resetChanges() {
+		membership_changed = new boolean[k];
+		centroid_changed = new boolean[k];
+		Arrays.fill(membership_changed, true);
+		Arrays.fill(centroid_changed, true);
+		num_centroids_changed = k;
+	}
+	
 	/**
 	 * Reassigns points to their closest centroids. If an example's centroid (cluster) changes, clustering_changed is set to true
 	 */
@@ -109,6 +247,8 @@ public class KMeansClassifier implements Classifier {
 				new_clusters.get(closest_centroid).add(e);
 				if (closest_centroid != centroid_index) { // if this example's closest centroid has changed
 					clustering_changed = true;
+					membership_changed[centroid_index] = true;
+					membership_changed[closest_centroid] = true;
 				} 
 			}
 		}
@@ -118,41 +258,48 @@ public class KMeansClassifier implements Classifier {
 	}
 	
 	/**
-	 * Updates the means by recalculating them for each cluster in the clusters hashmap
+	 * Updates the means by recalculating them for each cluster in the clusters hashmap.
+	 * A cluster with the same examples as last time would get the same mean, so it is skipped.
 	 */
 	private void updateMeans() {
 		for (int k = 0; k < centroids.size(); k++) {
+			centroid_changed[k] = membership_changed[k];
+			if (!membership_changed[k]) { continue; }
 			// Get the new mean for the cluster associated with this centroid
 			Example new_centroid = recalculateMean(clusters.get(k));
 			// Update the centroid in the centroids array
 			centroids.set(k, new_centroid);
 		}
+		Arrays.fill(membership_changed, false);
 	}
 	
 	/**
-	 * Recalculate the mean for a given arraylist of examples
+	 * Recalculate the (weighted) mean for a given arraylist of examples
 	 * @param examples
 	 * @return
 	 */
     private Example recalculateMean(ArrayList<Example> examples) {
         Example center = new Example();
         HashMap<Integer, Double> feat_values = new HashMap<Integer, Double>();
+        double total_weight = 0;
         
         for ( Example e : examples ) {
-            for ( int f : data_featureset ) {
+            double weight = e.getWeight(); // an example standing in for near-duplicates counts once for each
+            total_weight += weight;
+            for (int f = 0; f < num_data_features; f++) {
                 if (!feat_values.containsKey(f)) {
-                    feat_values.put(f, e.getFeature(f));
+                    feat_values.put(f, weight * e.getFeature(f));
                 }
                 else {
                     double count = feat_values.get(f);
-                    count += e.getFeature(f);
+                    count += weight * e.getFeature(f);
                     feat_values.put(f, count);
                 }
             }
         }
         
-        for ( int f : data_featureset ) {
-            double avg = feat_values.get(f)/examples.size();
+        for (int f = 0; f < num_data_features; f++) {
+            double avg = feat_values.get(f)/total_weight;
             center.setFeature(f, avg);
         }
         return center;
@@ -203,12 +350,23 @@ public class KMeansClassifier implements Classifier {
 	 * @return
 	 */
 	private int getClosestCentroid(Example e) {
+		// only the similarities to centroids that changed need to be recomputed
+		double[] similarities = example_similarities == null ? null : example_similarities.get(e);
+		boolean cached = similarities != null;
+		if (!cached) {
+			similarities = new double[k];
+			if (example_similarities != null) {
+				example_similarities.put(e, similarities);
+			}
+		}
 		double max_cos = -1;
 		int index_of_closest_centroid = -5;
 		for ( int index = 0; index< centroids.size(); index++ ) {
-			Example c = centroids.get(index);
-			if (cos_sim(e, c) > max_cos)  {
-				max_cos = cos_sim(e, c);
+			if (!cached || centroid_changed[index]) {
+				similarities[index] = cos_sim(e, centroids.get(index));
+			}
+			if (similarities[index] > max_cos)  {
+				max_cos = similarities[index];
 				index_of_closest_centroid = index;
 			}
 		}
@@ -244,8 +402,20 @@ public class KMeansClassifier implements Classifier {
 		
 	
 	public double classify(Example example) {
-		int c = getClosestCentroid(example);
-		double majority_label = getMajorityLabelCount(c)[0];
+		ClassifyEvent event = new ClassifyEvent();
+		event.begin();
+		Metrics metrics = Metrics.get();
+		long start = metrics.isEnabled() ? System.nanoTime() : 0;
+		
+		double majority_label = getTrainedModel().classify(example);
+		
+		if (event.shouldCommit()) {
+			event.classifier = "k-means";
+			event.commit();
+		}
+		if (metrics.isEnabled()) {
+			metrics.time("kmeans.classify", System.nanoTime() - start);
+		}
 		return majority_label;
 	}
 
@@ -253,6 +423,62 @@ public class KMeansClassifier implements Classifier {
 	public double confidence(Example example) {
 		return 0;
 	}
+	
+	/**
+	 * Get the model from the last call to train (null if it hasn't been trained). The model is immutable,
+	 * so it can be kept and used from any thread even while the classifier is being retrained.
+	 * @return
+	 */
+	public KMeansModel getModel() {
+		return model.get();
+	}
+	
+	public int getClusterIndex(Example example) {
+		return getTrainedModel().getClusterIndex(example);
+	}
+	
+	public double getClusterLabel(int cluster) {
+		return getTrainedModel().getClusterLabel(cluster);
+	}
+	
+	public int getNumClusters() {
+		return getTrainedModel().numClusters();
+	}
+	
+	/**
+	 * The model from the last call to train
+	 * @return
+	 */
+	private KMeansModel getTrainedModel() {
+		KMeansModel current = model.get();
+		if (current == null) {
+			throw new IllegalStateException("called before train");
+		}
+		return current;
+	}
+	
+	/**
+	 * Snapshot the centroids and cluster labels from train(DataSet). The examples were already changed to
+	 * tf/idf values, so (as before) the examples being classified are compared without any more weighting.
+	 * @return
+	 */
+	private KMeansModel getExampleModel() {
+		CentroidMatrix snapshot = new CentroidMatrix(k, num_data_features, single_precision, kernels, true);
+		double[] values = new double[num_data_features];
+		// the majority labels come from one contingency table rather than counting each cluster's labels again
+		ClusterEvaluation evaluation = evaluate(1);
+		double[] labels = new double[k];
+		for (int c = 0; c < k; c++) {
+			Arrays.fill(values, 0);
+			Example centroid = centroids.get(c);
+			for (int f = 0; f < num_data_features; f++) {
+				values[f] = centroid.getFeature(f);
+			}
+			snapshot.setRow(c, values);
+			labels[c] = evaluation.getMajorityLabel(c);
+		}
+		return new KMeansModel(snapshot, null, labels);
+	}
 
 	/**
 	 * Given a term's feature number, iterates through each example in the data set and gets that word's number of occurances
@@ -261,7 +487,11 @@ public class KMeansClassifier implements Classifier {
 	 * @param examples
 	 */
 	private void populateIDF(ArrayList<Example> examples) {
-        for ( int feature_num : data_featureset ) {
+		IDFEvent event = new IDFEvent();
+		event.begin();
+		long start = System.nanoTime();
+		
+        for (int feature_num = 0; feature_num < num_data_features; feature_num++) {
             double count = 0;
             for ( Example e : examples ) {
                 if (e.getFeature(feature_num) != 0) { //technically don't even need this comparison since it would be just adding 0
@@ -273,6 +503,10 @@ public class KMeansClassifier implements Classifier {
             idf_hash.put(feature_num, idf);
         }
         
+        event.features = num_data_features;
+        event.documents = examples.size();
+        event.commit();
+        Metrics.get().time("kmeans.idf", System.nanoTime() - start);
     }
 	
 	/**
@@ -289,7 +523,7 @@ public class KMeansClassifier implements Classifier {
 		double mag_1 = 0;
 		double mag_2 = 0;
 //		System.out.println("comparing " + exampleA + " to " + exampleB);
-		for ( int f : data_featureset ) {
+		for (int f = 0; f < num_data_features; f++) {
 			dot_product += ( exampleA.getFeature(f) * exampleB.getFeature(f) );
 			mag_1 += Math.pow(exampleA.getFeature(f), 2);
 			mag_2 += Math.pow(exampleB.getFeature(f), 2);
@@ -307,23 +541,136 @@ public class KMeansClassifier implements Classifier {
      * @return
      */
     public double getClusterPurity(int cluster_id) {
-    	ArrayList<Example> examples = clusters.get(cluster_id);
-    	double[] majorityLabelCount = getMajorityLabelCount(cluster_id);
-    	double max_label = majorityLabelCount[0];
-    	double max_count = majorityLabelCount[1];
-        System.out.println("cluster " + cluster_id + " max_label: " + max_label);
-        System.out.println(max_count+"/"+examples.size());
-        double purity = (double) max_count/ (double) examples.size();
-        return purity;
+    	return getEvaluation().getClusterPurity(cluster_id);
     }
     
     public double getOveralPurity() {
-    	int running_sum = 0;
-    	int total_examples = examples.size();
-    	for (int centroid_index : clusters.keySet()) {
-			running_sum	+= getMajorityLabelCount(centroid_index)[1];
-		}
-    	return (double) running_sum/total_examples;
+    	return getEvaluation().getPurity();
+    }
+    
+    /**
+     * The evaluation of the clustering from the last call to train, built (on this thread) if evaluate hasn't been called since
+     * @return
+     */
+    private ClusterEvaluation getEvaluation() {
+    	return evaluation != null ? evaluation : evaluate(1);
+    }
+    
+    /**
+     * Evaluate the clustering from the last call to train (purity, NMI, ARI) against the true labels.
+     * The result is kept, so getClusterPurity and getOveralPurity don't count the labels again.
+     * @param num_threads number of threads to build the contingency table with
+     * @return
+     */
+    public ClusterEvaluation evaluate(int num_threads) {
+    	checkTrainedLocally();
+    	if (centroid_matrix != null) {
+    		double[] labels = new double[assignments.length];
+    		for (int row = 0; row < labels.length; row++) {
+    			labels[row] = matrix.getLabel(row);
+    		}
+    		evaluation = new ClusterEvaluation(assignments, labels, k, num_threads);
+    		return evaluation;
+    	}
+    	
+    	int[] example_assignments = new int[examples.size()];
+    	double[] labels = new double[examples.size()];
+    	int i = 0;
+    	for (int c = 0; c < k; c++) {
+    		for (Example e : clusters.get(c)) {
+    			example_assignments[i] = c;
+    			labels[i] = e.getLabel();
+    			i++;
+    		}
+    	}
+    	evaluation = new ClusterEvaluation(example_assignments, labels, k, num_threads);
+    	return evaluation;
+    }
+    
+    /**
+     * Mean silhouette (with cosine distance) of a sample of the training data from the last call to train
+     * @param sample_size number of examples to sample
+     * @param seed random seed for the sample
+     * @param num_threads
+     * @return
+     */
+    public double getSilhouette(int sample_size, long seed, int num_threads) {
+    	ClusterEvaluation evaluation = evaluate(num_threads);
+    	if (centroid_matrix != null) {
+    		return evaluation.getSilhouette((a, b) -> 1 - sparseCosine(a, b), sample_size, seed);
+    	}
+    	
+    	ArrayList<Example> ordered = getExamplesByCluster();
+    	return evaluation.getSilhouette((a, b) -> 1 - sparseCosine(ordered.get(a), ordered.get(b)), sample_size, seed);
+    }
+    
+    /**
+     * All of the examples, cluster by cluster (the order evaluate uses)
+     * @return
+     */
+    private ArrayList<Example> getExamplesByCluster() {
+    	ArrayList<Example> ordered = new ArrayList<Example>(examples.size());
+    	for (int c = 0; c < k; c++) {
+    		ordered.addAll(clusters.get(c));
+    	}
+    	return ordered;
+    }
+    
+    /**
+     * Cosine similarity between two examples, only looking at the features they actually have
+     * (cos_sim goes through the whole feature set, which is too slow for all-pairs comparisons)
+     * @param a
+     * @param b
+     * @return
+     */
+    private double sparseCosine(Example a, Example b) {
+    	double dot_product = 0;
+    	double mag_a = 0;
+    	for (int f : a.getFeatureSet()) {
+    		double value = a.getFeature(f);
+    		dot_product += value * b.getFeature(f);
+    		mag_a += value * value;
+    	}
+    	double mag_b = 0;
+    	for (int f : b.getFeatureSet()) {
+    		mag_b += b.getFeature(f) * b.getFeature(f);
+    	}
+    	return dot_product / Math.sqrt(mag_a * mag_b);
+    }
+    
+    /**
+     * Cosine similarity between two rows of the matrix (the features in a row are sorted, so this is a merge;
+     * dense rows line up column by column)
+     * @param a
+     * @param b
+     * @return
+     */
+    private double sparseCosine(int a, int b) {
+    	long p = matrix.rowStart(a);
+    	long q = matrix.rowStart(b);
+    	double dot_product = 0;
+    	if (dense_rows) {
+    		for (int f = 0; f < matrix.numColumns(); f++) {
+    			dot_product += matrix.getValue(p + f) * matrix.getValue(q + f);
+    		}
+    		return dot_product / (row_norms[a] * row_norms[b]);
+    	}
+    	while (p < matrix.rowEnd(a) && q < matrix.rowEnd(b)) {
+    		int f_a = matrix.getIndex(p);
+    		int f_b = matrix.getIndex(q);
+    		if (f_a == f_b) {
+    			dot_product += matrix.getValue(p) * matrix.getValue(q);
+    			p++;
+    			q++;
+    		}
+    		else if (f_a < f_b) {
+    			p++;
+    		}
+    		else {
+    			q++;
+    		}
+    	}
+    	return dot_product / (row_norms[a] * row_norms[b]);
     }
     
     /**
@@ -332,6 +679,7 @@ public class KMeansClassifier implements Classifier {
      * @return
      */
     public double[] getMajorityLabelCount(int cluster_id) {
+    	checkTrainedLocally();
 	    HashMap<Double, Integer> counts = new HashMap<Double, Integer>(); //Hashmap for instances of each label in cluster
 	    ArrayList<Example> examples = clusters.get(cluster_id);
 	    for ( Example e : examples ) {
@@ -356,4 +704,467 @@ public class KMeansClassifier implements Classifier {
 	    double[] ret_array = {max_label, (double)max_count};
 	    return ret_array;
     }
-}
+
+	/**
+	 * Train on an off-heap SparseMatrix. This is the same algorithm as train(DataSet) (tf/idf weighting,
+	 * farthest-first initialization, then iterating until the clustering stops changing), but rows are read
+	 * straight out of the matrix and the centroids are dense arrays, so no Example objects are created.
+	 * Like train(DataSet), the matrix values are changed to tf/idf values.
+	 * If single precision is set, the centroids are stored as floats (sums and dot products are still doubles).
+	 * If a coreset size is set, the centroids are found by clustering a weighted coreset of the rows (see Coreset)
+	 * and then every row is assigned to its closest centroid in one final pass.
+	 * If a projection dimension is set, the tf/idf rows are first reduced to that many dense dimensions with a
+	 * sparse random projection (Achlioptas', see RandomProjection) and clustered there; the projected rows are what
+	 * evaluate, getCost and getSilhouette look at afterwards (until the next train, which closes them).
+	 * @param data
+	 */
+	public void train(SparseMatrix data) {
+		closeProjectedMatrix();
+		matrix = data;
+		evaluation = null;
+		trained_distributed = false;
+		int num_rows = (int) matrix.numRows();
+		int num_features = matrix.numColumns();
+		
+		idf_vector = getIDF(matrix);
+		initialize_tfidf_values(matrix, idf_vector);
+		
+		RandomProjection projection = null;
+		if (projection_dimension > 0) {
+			// cluster short dense projections of the (tf/idf) rows instead of the rows themselves
+			projection = RandomProjection.sparse(num_features, projection_dimension, seed, Runtime.getRuntime().availableProcessors());
+			try {
+				projected_matrix = projection.project(data, null);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			matrix = projected_matrix;
+			num_features = projection_dimension;
+		}
+		dense_rows = matrix.isDense();
+		SparseMatrix rows = matrix;
+		row_norms = getRowNorms(rows);
+		
+		// sparse rows are scored against all of the centroids at once, so the centroids are stored by feature;
+		// dense (projected) rows are scored one centroid at a time, so they're stored by centroid
+		centroid_matrix = new CentroidMatrix(k, num_features, single_precision, kernels, !dense_rows);
+		row_scores = new double[k];
+		if (coreset_size > 0 && coreset_size < num_rows) {
+			// cluster a weighted sample of the rows, then assign all of the rows once at the end
+			SparseMatrix coreset;
+			try {
+				coreset = new Coreset(seed).sample(rows, coreset_size, null);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			double[] full_norms = row_norms;
+			matrix = coreset;
+			row_norms = getRowNorms(coreset);
+			cluster();
+			matrix = rows;
+			row_norms = full_norms;
+			try {
+				coreset.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			
+			assignments = new int[num_rows];
+			for (int row = 0; row < num_rows; row++) {
+				assignments[row] = getClosestCentroid(row);
+			}
+		}
+		else {
+			cluster();
+		}
+		
+		// find the majority label of each cluster for classification
+		ClusterEvaluation evaluation = evaluate(1);
+		cluster_labels = new double[k];
+		for (int c = 0; c < k; c++) {
+			cluster_labels[c] = evaluation.getMajorityLabel(c);
+		}
+		
+		// the model takes over centroid_matrix; the next train starts a new one
+		model.set(new KMeansModel(centroid_matrix, idf_vector, cluster_labels, projection));
+	}
+	
+	/**
+	 * Release the projected rows from the last train(SparseMatrix), which are about to be replaced
+	 */
+	private void closeProjectedMatrix() {
+		if (projected_matrix == null) {
+			return;
+		}
+		if (matrix == projected_matrix) {
+			matrix = null;
+		}
+		try {
+			projected_matrix.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			projected_matrix = null;
+		}
+	}
+	
+	/**
+	 * Farthest-first initialization, then iterate until the clustering of the rows of matrix stops changing
+	 */
+	private void cluster() {
+		initializeMatrixMeans();
+		resetChanges();
+		// cache the similarities unless that would take too much memory (then every row is always re-scored)
+		long cache_size = (long) row_norms.length * k;
+		boolean fits = cache_size * 4 <= similarity_cache_budget && cache_size <= Integer.MAX_VALUE - 8;
+		row_similarities = fits ? new float[(int) cache_size] : null;
+		
+		assignments = new int[row_norms.length];
+		for (int row = 0; row < assignments.length; row++) {
+			assignments[row] = getClosestCachedCentroid(row);
+		}
+		
+		clustering_changed = true;
+		int iterations = 0;
+		while (clustering_changed) {
+			if (iterations >= numIterations) { break; }
+			clustering_changed = false;
+			runIteration(iterations, true);
+			iterations++;
+		}
+		row_similarities = null;
+	}
+	
+	/**
+	 * Train with worker processes (see DistributedKMeans) on a text file that may be too big for this JVM.
+	 * Only the model is kept here, so classify works as usual but evaluate, getAssignments, getCost (and
+	 * everything built on them) throw IllegalStateException; use the returned DistributedKMeans for the
+	 * assignments and evaluation.
+	 * @param text_file the examples, in TextDataReader's format, on a file system the workers can see
+	 * @param num_workers number of workers to wait for
+	 * @param server where the workers connect
+	 * @return the coordinator
+	 * @throws IOException
+	 */
+	public DistributedKMeans trainDistributed(String text_file, int num_workers, ServerSocket server) throws IOException {
+		closeProjectedMatrix();
+		evaluation = null;
+		// drop the clustering from the last local train so it can't be mistaken for this one
+		trained_distributed = true;
+		centroid_matrix = null;
+		matrix = null;
+		row_norms = null;
+		assignments = null;
+		centroids = null;
+		clusters = null;
+		examples = null;
+		DistributedKMeans coordinator = new DistributedKMeans(k, numIterations);
+		model.set(coordinator.train(text_file, num_workers, server));
+		return coordinator;
+	}
+	
+	/**
+	 * The clustering itself is only kept after a local train
+	 * @throws IllegalStateException if the last train was trainDistributed
+	 */
+	private void checkTrainedLocally() {
+		if (trained_distributed) {
+			throw new IllegalStateException("Only the model is kept after trainDistributed; use the DistributedKMeans it returned for the assignments and evaluation");
+		}
+	}
+	
+	/**
+	 * The k-means cost of the clustering from the last call to train(SparseMatrix): the weighted sum over all
+	 * of the rows of the cosine distance (1 - cosine similarity) to their centroid. Useful to measure how much
+	 * is lost by clustering a coreset.
+	 * @return
+	 */
+	public double getCost() {
+		checkTrainedLocally();
+		double cost = 0;
+		for (int row = 0; row < assignments.length; row++) {
+			int length = row_buffer.load(matrix, row);
+			int c = assignments[row];
+			double cos = row_buffer.dot(centroid_matrix, c, length) / (row_norms[row] * centroid_matrix.norm(c));
+			cost += matrix.getWeight(row) * (1 - cos);
+		}
+		return cost;
+	}
+	
+	/**
+	 * Get the cluster index of each row of the matrix from the last call to train(SparseMatrix)
+	 * @return
+	 */
+	public int[] getAssignments() {
+		checkTrainedLocally();
+		return assignments;
+	}
+	
+	/**
+	 * Get log(number of rows / total count of the feature) for every feature in the matrix
+	 * @param data
+	 * @return the idf value of each feature index
+	 */
+	static double[] getIDF(SparseMatrix data) {
+		IDFEvent event = new IDFEvent();
+		event.begin();
+		long start = System.nanoTime();
+		
+		double[] counts = new double[data.numColumns()];
+		for (long p = 0; p < data.numNonZero(); p++) {
+			counts[data.getIndex(p)] += data.getValue(p);
+		}
+		
+		double[] idf = new double[counts.length];
+		for (int f = 0; f < counts.length; f++) {
+			idf[f] = Math.log(data.numRows() / counts[f]);
+		}
+		
+		event.features = idf.length;
+		event.documents = data.numRows();
+		event.commit();
+		Metrics.get().time("kmeans.idf", System.nanoTime() - start);
+		return idf;
+	}
+	
+	/**
+	 * Change the matrix to have tf/idf values instead of word counts
+	 * @param data
+	 * @param idf the idf value of each feature index
+	 */
+	static void initialize_tfidf_values(SparseMatrix data, double[] idf) {
+		for (long p = 0; p < data.numNonZero(); p++) {
+			data.setValue(p, data.getValue(p) / idf[data.getIndex(p)]);
+		}
+	}
+	
+	/**
+	 * Get the magnitude of every row of the matrix
+	 * @param data
+	 * @return
+	 */
+	static double[] getRowNorms(SparseMatrix data) {
+		double[] norms = new double[(int) data.numRows()];
+		for (int row = 0; row < norms.length; row++) {
+			double sum = 0;
+			for (long p = data.rowStart(row); p < data.rowEnd(row); p++) {
+				sum += data.getValue(p) * data.getValue(p);
+			}
+			norms[row] = Math.sqrt(sum);
+		}
+		return norms;
+	}
+	
+	/**
+	 * Farthest-first initialization, the same as initializeMeans, but keeping track of each row's
+	 * max cosine to the centroids chosen so far so each row is only compared against the newest centroid
+	 */
+	private void initializeMatrixMeans() {
+		int num_rows = row_norms.length;
+		double[] max_cos = new double[num_rows];
+		for (int row = 0; row < num_rows; row++) {
+			max_cos[row] = Double.MIN_VALUE;
+		}
+		
+		setCentroidToRow(0, 0); //just pick the first row arbitrarily
+		for (int i = 1; i < k; i++) {
+			setCentroidToRow(i, getFarthestRow(matrix, row_buffer, row_norms, centroid_matrix, i - 1, max_cos));
+		}
+	}
+	
+	/**
+	 * One step of the farthest-first initialization: fold the similarity of every row to the newest centroid into
+	 * max_cos, and find the row that is least similar to its closest centroid
+	 * @param matrix
+	 * @param buffer scratch space for the rows
+	 * @param row_norms magnitude of each row
+	 * @param centroids
+	 * @param centroid the newest centroid
+	 * @param max_cos similarity of each row to its closest centroid so far (updated)
+	 * @return the farthest row, or -1 if there are no rows
+	 */
+	static int getFarthestRow(SparseMatrix matrix, RowBuffer buffer, double[] row_norms, CentroidMatrix centroids, int centroid, double[] max_cos) {
+		double max_distance = Double.MAX_VALUE;
+		int farthest_row = -1;
+		for (int row = 0; row < row_norms.length; row++) {
+			int length = buffer.load(matrix, row);
+			double cos = buffer.dot(centroids, centroid, length) / (row_norms[row] * centroids.norm(centroid));
+			if (cos > max_cos[row]) {
+				max_cos[row] = cos;
+			}
+			if (max_cos[row] < max_distance) {
+				max_distance = max_cos[row];
+				farthest_row = row;
+			}
+		}
+		return farthest_row;
+	}
+	
+	private void setCentroidToRow(int centroid_index, int row) {
+		double[] centroid = new double[centroid_matrix.numFeatures()];
+		if (dense_rows) {
+			int length = row_buffer.load(matrix, row);
+			System.arraycopy(row_buffer.values, 0, centroid, 0, length);
+		}
+		else {
+			for (long p = matrix.rowStart(row); p < matrix.rowEnd(row); p++) {
+				centroid[matrix.getIndex(p)] = matrix.getValue(p);
+			}
+		}
+		centroid_matrix.setRow(centroid_index, centroid);
+	}
+	
+	/**
+	 * Index of the closest centroid to a row of the matrix
+	 * @param row
+	 * @return
+	 */
+	private int getClosestCentroid(int row) {
+		int length = row_buffer.load(matrix, row);
+		if (!dense_rows) {
+			centroid_matrix.dots(row_buffer.values, row_buffer.indices, length, row_scores);
+		}
+		double max_cos = -1;
+		int index_of_closest_centroid = 0;
+		for (int index = 0; index < k; index++) {
+			double dot = dense_rows ? row_buffer.dot(centroid_matrix, index, length) : row_scores[index];
+			double cos = dot / (row_norms[row] * centroid_matrix.norm(index));
+			if (cos > max_cos) {
+				max_cos = cos;
+				index_of_closest_centroid = index;
+			}
+		}
+		return index_of_closest_centroid;
+	}
+	
+	/**
+	 * Index of the closest centroid to a row of the matrix, using the cached similarities for the centroids
+	 * that haven't changed since they were computed. Fresh similarities are compared in double precision, like
+	 * getClosestCentroid(row), and only the cached ones are rounded to floats, so the first assignment is the
+	 * same with or without the cache and later ones only differ when an unchanged centroid ties within float
+	 * precision.
+	 * @param row
+	 * @return
+	 */
+	private int getClosestCachedCentroid(int row) {
+		if (row_similarities == null) {
+			return getClosestCentroid(row);
+		}
+		int length = row_buffer.load(matrix, row);
+		int offset = row * k;
+		// scoring against all of the centroids at once costs about as much as a few separate dot products
+		boolean all_at_once = !dense_rows && num_centroids_changed * 4 >= k;
+		if (all_at_once) {
+			centroid_matrix.dots(row_buffer.values, row_buffer.indices, length, row_scores);
+		}
+		double max_cos = -1;
+		int index_of_closest_centroid = 0;
+		for (int index = 0; index < k; index++) {
+			double cos;
+			if (centroid_changed[index]) {
+				double dot = all_at_once ? row_scores[index] : row_buffer.dot(centroid_matrix, index, length);
+				cos = dot / (row_norms[row] * centroid_matrix.norm(index));
+				row_similarities[offset + index] = (float) cos;
+			}
+			else {
+				cos = row_similarities[offset + index];
+			}
+			if (cos > max_cos) {
+				max_cos = cos;
+				index_of_closest_centroid = index;
+			}
+		}
+		return index_of_closest_centroid;
+	}
+	
+	/**
+	 * Reassigns rows to their closest centroids, setting clustering_changed if any row moves
+	 */
+	private void reassignRows() {
+		for (int row = 0; row < assignments.length; row++) {
+			int closest_centroid = getClosestCachedCentroid(row);
+			if (closest_centroid != assignments[row]) {
+				membership_changed[assignments[row]] = true;
+				membership_changed[closest_centroid] = true;
+				assignments[row] = closest_centroid;
+				clustering_changed = true;
+			}
+		}
+	}
+	
+	/**
+	 * Recalculates every centroid as the weighted mean of the rows assigned to it. A centroid with no rows keeps its old value.
+	 * The rows are grouped by cluster first so only one centroid's worth of double precision sums is needed at a time.
+	 * Clusters that didn't gain or lose any rows would get the same centroid, so they are skipped.
+	 */
+	private void updateMatrixMeans() {
+		int[] starts = new int[k + 1];
+		int[] rows_by_cluster = sortRowsByCluster(assignments, k, starts);
+		
+		double[] sum = new double[centroid_matrix.numFeatures()];
+		num_centroids_changed = 0;
+		for (int c = 0; c < k; c++) {
+			centroid_changed[c] = membership_changed[c] && starts[c + 1] > starts[c];
+			if (!centroid_changed[c]) { continue; }
+			num_centroids_changed++;
+			Arrays.fill(sum, 0);
+			double total_weight = addRows(matrix, rows_by_cluster, starts[c], starts[c + 1], sum);
+			centroid_matrix.setRow(c, sum, 1.0 / total_weight);
+		}
+		Arrays.fill(membership_changed, false);
+	}
+	
+	/**
+	 * Counting sort of the rows by cluster, so each cluster's rows can be summed in one pass
+	 * @param assignments the cluster of each row
+	 * @param k number of clusters
+	 * @param starts filled in with where each cluster's rows start in the result (k + 1 long; the last is the number of rows)
+	 * @return the rows, grouped by cluster
+	 */
+	static int[] sortRowsByCluster(int[] assignments, int k, int[] starts) {
+		Arrays.fill(starts, 0);
+		for (int row = 0; row < assignments.length; row++) {
+			starts[assignments[row] + 1]++;
+		}
+		for (int c = 0; c < k; c++) {
+			starts[c + 1] += starts[c];
+		}
+		int[] next = starts.clone();
+		int[] rows_by_cluster = new int[assignments.length];
+		for (int row = 0; row < assignments.length; row++) {
+			rows_by_cluster[next[assignments[row]]++] = row;
+		}
+		return rows_by_cluster;
+	}
+	
+	/**
+	 * Add the weighted rows[from] to rows[to - 1] of a matrix to sum
+	 * @param matrix
+	 * @param rows
+	 * @param from
+	 * @param to
+	 * @param sum one value per column
+	 * @return the total weight of the rows
+	 */
+	static double addRows(SparseMatrix matrix, int[] rows, int from, int to, double[] sum) {
+		boolean dense = matrix.isDense();
+		double total_weight = 0;
+		for (int i = from; i < to; i++) {
+			int row = rows[i];
+			double weight = matrix.getWeight(row);
+			long start = matrix.rowStart(row);
+			if (dense) {
+				for (int f = 0; f < sum.length; f++) {
+					sum[f] += weight * matrix.getValue(start + f);
+				}
+			}
+			else {
+				for (long p = start; p < matrix.rowEnd(row); p++) {
+					sum[matrix.getIndex(p)] += weight * matrix.getValue(p);
+				}
+			}
+			total_weight += weight;
+		}
+		return total_weight;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,114 @@
+package ml.classifiers;
+
+import ml.data.Example;
+import ml.data.RandomProjection;
+
+/**
+ * An immutable snapshot of a trained k-means model: the centroids, the idf value of each feature and the
+ * label of each cluster (and the random projection, if it was trained on one). Nothing in a model changes
+ * after it is created, so any number of threads can
+ * classify with it at the same time without locking (KMeansClassifier publishes a new one after each train).
+ */
+public final class KMeansModel {
+
+	private final CentroidMatrix centroids; // owned by the model; never written after construction
+	private final double[] idf_vector; // null if examples are compared without weighting them
+	private final double[] cluster_labels;
+	private final RandomProjection projection; // null if the centroids are over the features themselves
+
+	/**
+	 * The model takes over the centroids, so the caller must not change them afterwards
+	 * @param centroids
+	 * @param idf_vector idf value of each feature, or null to use the example values as they are
+	 * @param cluster_labels label of each cluster
+	 */
+	KMeansModel(CentroidMatrix centroids, double[] idf_vector, double[] cluster_labels) {
+		this(centroids, idf_vector, cluster_labels, null);
+	}
+	
+	/**
+	 * A model whose centroids are over randomly projected (weighted) examples
+	 * @param centroids
+	 * @param idf_vector idf value of each feature, or null to use the example values as they are
+	 * @param cluster_labels label of each cluster
+	 * @param projection the projection the centroids were trained on, or null for none
+	 */
+	KMeansModel(CentroidMatrix centroids, double[] idf_vector, double[] cluster_labels, RandomProjection projection) {
+		this.centroids = centroids;
+		this.idf_vector = idf_vector == null ? null : idf_vector.clone();
+		this.cluster_labels = cluster_labels.clone();
+		this.projection = projection;
+	}
+
+	public int numClusters() {
+		return centroids.numCentroids();
+	}
+
+	/**
+	 * @return the number of features examples can have (the rest are ignored)
+	 */
+	public int numFeatures() {
+		return projection != null ? projection.getInputDimension() : centroids.numFeatures();
+	}
+
+	public double getClusterLabel(int cluster) {
+		return cluster_labels[cluster];
+	}
+
+	/**
+	 * The label of the cluster closest to the example
+	 * @param example
+	 * @return
+	 */
+	public double classify(Example example) {
+		return cluster_labels[getClusterIndex(example)];
+	}
+
+	/**
+	 * Index of the closest (highest cosine similarity) centroid to an example. The example's values are
+	 * weighted by the idf values (without changing the example) and features the model doesn't have are ignored.
+	 * With a projection, the weighted example is projected before comparing.
+	 * @param example
+	 * @return
+	 */
+	public int getClusterIndex(Example example) {
+		int[] indices = new int[example.getFeatureSet().size()];
+		double[] values = new double[indices.length];
+		int length = 0;
+		for (int f : example.getFeatureSet()) {
+			if (f < numFeatures()) {
+				indices[length] = f;
+				values[length] = idf_vector == null ? example.getFeature(f) : example.getFeature(f) / idf_vector[f];
+				length++;
+			}
+		}
+		double[] projected = null;
+		if (projection != null) {
+			projected = new double[projection.getOutputDimension()];
+			projection.project(indices, values, length, projected);
+			values = projected;
+			length = projected.length;
+		}
+		double norm = 0;
+		for (int i = 0; i < length; i++) {
+			norm += values[i] * values[i];
+		}
+		norm = Math.sqrt(norm);
+
+		double[] scores = new double[centroids.numCentroids()];
+		if (projected == null) {
+			centroids.dots(values, indices, length, scores);
+		}
+		double max_cos = -1;
+		int index_of_closest_centroid = 0;
+		for (int index = 0; index < centroids.numCentroids(); index++) {
+			double dot = projected != null ? centroids.dot(index, projected) : scores[index];
+			double cos = dot / (norm * centroids.norm(index));
+			if (cos > max_cos) {
+				max_cos = cos;
+				index_of_closest_centroid = index;
+			}
+		}
+		return index_of_closest_centroid;
+	}
+}
@@ -0,0 +1,164 @@
+package ml.classifiers;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times the Vector API kernels against the scalar ones on random data shaped like k-means over text:
+ * k dense centroids, sparse documents with a few hundred non-zero features, and centroid updates.
+ * 
+ * Usage: java --add-modules jdk.incubator.vector ml.classifiers.KernelBenchmark [k] [numFeatures] [nonZeroPerRow]
+ * 
+ * (src-vector has to be compiled too; without it, only the scalar kernels are timed.)
+ */
+public class KernelBenchmark {
+	private static final int NUM_ROWS = 2000;
+	private static final int REPEATS = 5;
+	
+	public static void main(String[] args) {
+		int k = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int num_features = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int non_zero = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		
+		Kernels scalar = Kernels.get("scalar");
+		Kernels vector = Kernels.get("auto");
+		if (vector.getClass() == ScalarKernels.class) {
+			System.out.println("Vector API not available (run with --add-modules jdk.incubator.vector); only timing scalar kernels");
+		}
+		System.out.println("k=" + k + " features=" + num_features + " non-zero per row=" + non_zero);
+		
+		Random random = new Random(451);
+		double[] centroids = new double[k * num_features];
+		float[] float_centroids = new float[centroids.length];
+		for (int i = 0; i < centroids.length; i++) {
+			centroids[i] = random.nextDouble();
+			float_centroids[i] = (float) centroids[i];
+		}
+		
+		int[][] indices = new int[NUM_ROWS][];
+		double[][] values = new double[NUM_ROWS][non_zero];
+		for (int r = 0; r < NUM_ROWS; r++) {
+			indices[r] = random.ints(0, num_features).distinct().limit(non_zero).sorted().toArray();
+			for (int i = 0; i < non_zero; i++) {
+				values[r][i] = random.nextDouble();
+			}
+		}
+		
+		for (Kernels kernels : vector.getClass() == ScalarKernels.class ? new Kernels[]{scalar} : new Kernels[]{scalar, vector}) {
+			System.out.println("--- " + kernels);
+			double checksum = 0;
+			
+			// warm up and time each kernel, keeping the best of the repeats
+			long best = Long.MAX_VALUE;
+			for (int rep = 0; rep < REPEATS; rep++) {
+				long start = System.nanoTime();
+				checksum = 0;
+				for (int r = 0; r < NUM_ROWS; r++) {
+					for (int c = 0; c < k; c++) {
+						checksum += kernels.sparseDot(values[r], indices[r], non_zero, centroids, c * num_features);
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			report("sparse dot (double centroids)", best, (long) NUM_ROWS * k, checksum);
+			
+			best = Long.MAX_VALUE;
+			for (int rep = 0; rep < REPEATS; rep++) {
+				long start = System.nanoTime();
+				checksum = 0;
+				for (int r = 0; r < NUM_ROWS; r++) {
+					for (int c = 0; c < k; c++) {
+						checksum += kernels.sparseDot(values[r], indices[r], non_zero, float_centroids, c * num_features);
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			report("sparse dot (float centroids)", best, (long) NUM_ROWS * k, checksum);
+
+			// the same dot products, all k per row at once against the centroids stored by feature
+			double[] columns = new double[centroids.length];
+			float[] float_columns = new float[centroids.length];
+			for (int c = 0; c < k; c++) {
+				for (int f = 0; f < num_features; f++) {
+					columns[f * k + c] = centroids[c * num_features + f];
+					float_columns[f * k + c] = float_centroids[c * num_features + f];
+				}
+			}
+			double[] scores = new double[k];
+			best = Long.MAX_VALUE;
+			for (int rep = 0; rep < REPEATS; rep++) {
+				long start = System.nanoTime();
+				checksum = 0;
+				for (int r = 0; r < NUM_ROWS; r++) {
+					kernels.sparseDots(values[r], indices[r], non_zero, columns, k, scores);
+					for (int c = 0; c < k; c++) {
+						checksum += scores[c];
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			report("all-centroid sparse dots (double)", best, (long) NUM_ROWS * k, checksum);
+
+			best = Long.MAX_VALUE;
+			for (int rep = 0; rep < REPEATS; rep++) {
+				long start = System.nanoTime();
+				checksum = 0;
+				for (int r = 0; r < NUM_ROWS; r++) {
+					kernels.sparseDots(values[r], indices[r], non_zero, float_columns, k, scores);
+					for (int c = 0; c < k; c++) {
+						checksum += scores[c];
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			report("all-centroid sparse dots (float)", best, (long) NUM_ROWS * k, checksum);
+
+			best = Long.MAX_VALUE;
+			for (int rep = 0; rep < REPEATS; rep++) {
+				long start = System.nanoTime();
+				checksum = 0;
+				for (int a = 0; a < k; a++) {
+					for (int b = 0; b < k; b++) {
+						checksum += kernels.dot(centroids, a * num_features, centroids, b * num_features, num_features);
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			report("dense dot (double)", best, (long) k * k, checksum);
+			
+			best = Long.MAX_VALUE;
+			for (int rep = 0; rep < REPEATS; rep++) {
+				long start = System.nanoTime();
+				checksum = 0;
+				for (int a = 0; a < k; a++) {
+					for (int b = 0; b < k; b++) {
+						checksum += kernels.dot(float_centroids, a * num_features, float_centroids, b * num_features, num_features);
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			report("dense dot (float)", best, (long) k * k, checksum);
+			
+			double[] sums = Arrays.copyOf(centroids, num_features);
+			double[] double_dest = new double[centroids.length];
+			float[] float_dest = new float[centroids.length];
+			best = Long.MAX_VALUE;
+			for (int rep = 0; rep < REPEATS; rep++) {
+				long start = System.nanoTime();
+				checksum = 0;
+				for (int i = 0; i < 20; i++) {
+					for (int c = 0; c < k; c++) {
+						checksum += kernels.scaleInto(sums, 0.5, double_dest, c * num_features, num_features);
+						checksum += kernels.scaleInto(sums, 0.5, float_dest, c * num_features, num_features);
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			report("centroid update (double + float)", best, 20L * k, checksum);
+		}
+	}
+	
+	private static void report(String name, long nanos, long operations, double checksum) {
+		System.out.printf("%-34s %10.1f ns/op   (checksum %.6g)%n", name, (double) nanos / operations, checksum);
+	}
+}
@@ -0,0 +1,102 @@
+package ml.classifiers;
+
+/**
+ * The arithmetic at the core of k-means over dense centroids: dot products between
+ * a (sparse) document and a centroid, and writing out a centroid while computing its norm.
+ * Centroids are stored either as doubles or floats; every method accumulates in double.
+ * 
+ * There are two implementations: ScalarKernels (plain loops) and VectorKernels, which
+ * uses the incubating Java Vector API (jdk.incubator.vector).  VectorKernels lives in its own
+ * source root (src-vector) so the rest of the code builds without the incubator module; it is
+ * only compiled, and only used, with --add-modules jdk.incubator.vector (see README.md).
+ * Use get() to pick one at runtime.
+ */
+public interface Kernels {
+	
+	/**
+	 * Dot product of a sparse vector with part of a dense array
+	 * @param values the non-zero values of the sparse vector
+	 * @param indices the index of each value (relative to offset)
+	 * @param length number of non-zero values
+	 * @param dense the dense array
+	 * @param offset where the dense vector starts in the array
+	 * @return
+	 */
+	double sparseDot(double[] values, int[] indices, int length, double[] dense, int offset);
+	double sparseDot(double[] values, int[] indices, int length, float[] dense, int offset);
+	
+	/**
+	 * Dot products of a sparse vector with every centroid at once, for centroids stored by feature (the
+	 * num_centroids values of feature j start at j * num_centroids). Each non-zero value is multiplied into
+	 * one contiguous block of centroid values, so there are no scattered loads and the centroid side can use SIMD:
+	 * scores[c] = sum over i of values[i] * columns[indices[i] * num_centroids + c]
+	 * @param values the non-zero values of the sparse vector
+	 * @param indices the feature index of each value
+	 * @param length number of non-zero values
+	 * @param columns the centroids, stored by feature
+	 * @param num_centroids
+	 * @param scores where to put the dot product with each centroid
+	 */
+	void sparseDots(double[] values, int[] indices, int length, double[] columns, int num_centroids, double[] scores);
+	void sparseDots(double[] values, int[] indices, int length, float[] columns, int num_centroids, double[] scores);
+	
+	/**
+	 * Dot product of two dense vectors
+	 * @param a
+	 * @param a_offset
+	 * @param b
+	 * @param b_offset
+	 * @param length
+	 * @return
+	 */
+	double dot(double[] a, int a_offset, double[] b, int b_offset, int length);
+	double dot(float[] a, int a_offset, float[] b, int b_offset, int length);
+	double dot(double[] a, int a_offset, float[] b, int b_offset, int length);
+	
+	/**
+	 * Write source * scale into dest (starting at offset) and return the sum of squares of what was written.
+	 * This is how a centroid is set from its accumulated sums.
+	 * @param source
+	 * @param scale
+	 * @param dest
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	double scaleInto(double[] source, double scale, double[] dest, int offset, int length);
+	double scaleInto(double[] source, double scale, float[] dest, int offset, int length);
+	
+	/**
+	 * Get the kernels selected by the ml.kernels system property: "scalar", "vector", or (the default) "auto",
+	 * which uses the Vector API when it's available and falls back to the scalar loops when it isn't.
+	 * @return
+	 */
+	static Kernels get() {
+		return get(System.getProperty("ml.kernels", "auto"));
+	}
+	
+	/**
+	 * Get the kernels with the given name ("scalar", "vector" or "auto")
+	 * @param name
+	 * @return
+	 * @throws IllegalArgumentException for any other name
+	 */
+	static Kernels get(String name) {
+		if (name.equals("scalar")) {
+			return new ScalarKernels();
+		}
+		if (!name.equals("vector") && !name.equals("auto")) {
+			throw new IllegalArgumentException("Unknown kernels \"" + name + "\" (ml.kernels must be scalar, vector or auto)");
+		}
+		
+		try {
+			return (Kernels) Class.forName("ml.classifiers.VectorKernels").getDeclaredConstructor().newInstance();
+		}
+		catch (Throwable t) { // the module isn't there (NoClassDefFoundError) or the class wasn't built
+			if (name.equals("vector")) {
+				throw new IllegalStateException("Vector API kernels are not available; run with --add-modules jdk.incubator.vector", t);
+			}
+			return new ScalarKernels();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package ml.classifiers;
+
+import java.io.IOException;
+
+import ml.data.SparseMatrix;
+import ml.data.TextDataReader;
+
+/**
+ * Checks that single precision k-means gives the same clustering as double precision on a reference corpus.
+ * 
+ * Usage: PrecisionCheck <textFile> <k> <numIterations> [minAgreement]
+ * 
+ * The corpus is read into two SparseMatrix objects (one storing doubles, the other floats), each is clustered
+ * with the matching centroid precision and the fraction of rows assigned to the same cluster is printed.
+ * Exits with status 1 if the agreement is below minAgreement (default 1.0, i.e. identical assignments).
+ *
+ * The reference corpus is data/precision_reference.txt (779 synthetic documents from 3 topics, 2480 words).
+ * Its expected agreement is 1.0:
+ *
+ *   PrecisionCheck data/precision_reference.txt 20 30
+ */
+public class PrecisionCheck {
+	
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("PrecisionCheck <textFile> <k> <numIterations> [minAgreement]");
+			System.exit(2);
+		}
+		
+		String text_file = args[0];
+		int k = Integer.parseInt(args[1]);
+		int num_iterations = Integer.parseInt(args[2]);
+		double min_agreement = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+		
+		int[] double_assignments = cluster(text_file, k, num_iterations, false);
+		int[] float_assignments = cluster(text_file, k, num_iterations, true);
+		double agreement = getAgreement(double_assignments, float_assignments);
+		
+		System.out.println("rows: " + double_assignments.length);
+		System.out.println("agreement: " + agreement);
+		
+		if (agreement < min_agreement) {
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Read the corpus and cluster it with the given precision
+	 * @param text_file
+	 * @param k
+	 * @param num_iterations
+	 * @param single_precision
+	 * @return the cluster assignment of each row
+	 * @throws IOException
+	 */
+	private static int[] cluster(String text_file, int k, int num_iterations, boolean single_precision) throws IOException {
+		SparseMatrix matrix = SparseMatrix.read(new TextDataReader(text_file), null, single_precision);
+		KMeansClassifier classifier = new KMeansClassifier();
+		classifier.setK(k);
+		classifier.setNumIterations(num_iterations);
+		classifier.setSinglePrecision(single_precision);
+		classifier.train(matrix);
+		return classifier.getAssignments();
+	}
+	
+	/**
+	 * Fraction of rows that have the same assignment in a and b
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static double getAgreement(int[] a, int[] b) {
+		int same = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == b[i]) {
+				same++;
+			}
+		}
+		return (double) same / a.length;
+	}
+}
@@ -0,0 +1,55 @@
+package ml.classifiers;
+
+import ml.data.SparseMatrix;
+
+/**
+ * Scratch space for the current row of a SparseMatrix. The row is copied out of the matrix so it
+ * can be handed to the kernels, and the arrays grow to fit the longest row seen so far.
+ */
+class RowBuffer {
+	double[] values = new double[64];
+	int[] indices = new int[64]; // feature index of each value (not filled in for dense rows)
+	private boolean dense; // whether the row in the buffer is a dense row
+
+	/**
+	 * Copy a row of a matrix into values and indices. Dense rows (see SparseMatrix.dense) are copied
+	 * straight into values, the column of each value is its position.
+	 * @param matrix
+	 * @param row
+	 * @return the number of entries in the row
+	 */
+	int load(SparseMatrix matrix, long row) {
+		long start = matrix.rowStart(row);
+		int length = (int) (matrix.rowEnd(row) - start);
+		if (values.length < length) {
+			values = new double[length];
+			indices = new int[length];
+		}
+		dense = matrix.isDense();
+		if (dense) {
+			for (int i = 0; i < length; i++) {
+				values[i] = matrix.getValue(start + i);
+			}
+			return length;
+		}
+		for (int i = 0; i < length; i++) {
+			values[i] = matrix.getValue(start + i);
+			indices[i] = matrix.getIndex(start + i);
+		}
+		return length;
+	}
+
+	/**
+	 * Dot product of a centroid with the row in the buffer. Dense rows skip the indices.
+	 * @param centroids
+	 * @param centroid
+	 * @param length number of entries in the row
+	 * @return
+	 */
+	double dot(CentroidMatrix centroids, int centroid, int length) {
+		if (dense) {
+			return centroids.dot(centroid, values);
+		}
+		return centroids.dot(centroid, values, indices, length);
+	}
+}
@@ -0,0 +1,93 @@
+package ml.classifiers;
+
+import java.util.Arrays;
+
+/**
+ * Plain loop implementations of the k-means kernels.  Always available.
+ */
+public class ScalarKernels implements Kernels {
+	
+	public double sparseDot(double[] values, int[] indices, int length, double[] dense, int offset) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += values[i] * dense[offset + indices[i]];
+		}
+		return sum;
+	}
+	
+	public double sparseDot(double[] values, int[] indices, int length, float[] dense, int offset) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += values[i] * dense[offset + indices[i]];
+		}
+		return sum;
+	}
+	
+	public void sparseDots(double[] values, int[] indices, int length, double[] columns, int num_centroids, double[] scores) {
+		Arrays.fill(scores, 0, num_centroids, 0);
+		for (int i = 0; i < length; i++) {
+			int offset = indices[i] * num_centroids;
+			for (int c = 0; c < num_centroids; c++) {
+				scores[c] += values[i] * columns[offset + c];
+			}
+		}
+	}
+	
+	public void sparseDots(double[] values, int[] indices, int length, float[] columns, int num_centroids, double[] scores) {
+		Arrays.fill(scores, 0, num_centroids, 0);
+		for (int i = 0; i < length; i++) {
+			int offset = indices[i] * num_centroids;
+			for (int c = 0; c < num_centroids; c++) {
+				scores[c] += values[i] * columns[offset + c];
+			}
+		}
+	}
+	
+	public double dot(double[] a, int a_offset, double[] b, int b_offset, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += a[a_offset + i] * b[b_offset + i];
+		}
+		return sum;
+	}
+	
+	public double dot(float[] a, int a_offset, float[] b, int b_offset, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += (double) a[a_offset + i] * b[b_offset + i];
+		}
+		return sum;
+	}
+	
+	public double dot(double[] a, int a_offset, float[] b, int b_offset, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			sum += a[a_offset + i] * b[b_offset + i];
+		}
+		return sum;
+	}
+	
+	public double scaleInto(double[] source, double scale, double[] dest, int offset, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			double value = source[i] * scale;
+			dest[offset + i] = value;
+			sum += value * value;
+		}
+		return sum;
+	}
+	
+	public double scaleInto(double[] source, double scale, float[] dest, int offset, int length) {
+		double sum = 0;
+		for (int i = 0; i < length; i++) {
+			float value = (float) (source[i] * scale);
+			dest[offset + i] = value;
+			sum += (double) value * value;
+		}
+		return sum;
+	}
+	
+	public String toString() {
+		return "scalar";
+	}
+}
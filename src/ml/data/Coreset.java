@@ -0,0 +1,149 @@
+package ml.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Builds a lightweight coreset of a SparseMatrix: a small, weighted sample of its rows that k-means
+ * can be run on instead of the whole matrix (Bachem, Lucic and Krause, "Scalable k-Means Clustering
+ * via Lightweight Coresets", KDD 2018).
+ *
+ * Rows are treated as directions (each row is scaled to unit length), matching the cosine similarity
+ * k-means uses.  It takes two passes over the matrix: the first finds the weighted mean direction u, the
+ * second gives every row the sampling probability
+ *
+ *   q(x) = 1/2 * w(x) / W  +  1/2 * w(x) d(x,u)^2 / sum of w d^2
+ *
+ * where w(x) is the row weight and W the total weight.  Rows are then drawn with replacement with
+ * probability q and each draw gets weight w(x) / (m q(x)), so the weighted k-means cost of the sample
+ * is an unbiased estimate of the cost on the whole matrix.  Rows drawn more than once appear once
+ * with the weights added up.
+ */
+public class Coreset {
+	private long seed;
+
+	/**
+	 * @param seed random seed for the sample
+	 */
+	public Coreset(long seed){
+		this.seed = seed;
+	}
+
+	/**
+	 * Sample a coreset of data.  The sampled rows are copied (values unchanged) into a new matrix
+	 * (of dense rows if data's rows are dense) along with their labels and coreset weights.
+	 *
+	 * @param data
+	 * @param size number of draws (the coreset can have fewer rows since rows can be drawn more than once)
+	 * @param directory where to put the backing files of the new matrix, or null to keep it in direct buffers
+	 * @return the coreset
+	 * @throws IOException
+	 */
+	public SparseMatrix sample(SparseMatrix data, int size, File directory) throws IOException {
+		int numRows = (int)data.numRows();
+		double[] norms = new double[numRows];
+
+		// first pass: the weighted mean direction
+		double[] mean = new double[data.numColumns()];
+		double totalWeight = 0;
+
+		for( int row = 0; row < numRows; row++ ){
+			double sum = 0;
+
+			for( long p = data.rowStart(row); p < data.rowEnd(row); p++ ){
+				sum += data.getValue(p) * data.getValue(p);
+			}
+
+			norms[row] = Math.sqrt(sum);
+			double weight = data.getWeight(row);
+			totalWeight += weight;
+
+			if( norms[row] > 0 ){
+				for( long p = data.rowStart(row); p < data.rowEnd(row); p++ ){
+					mean[data.getIndex(p)] += weight * data.getValue(p) / norms[row];
+				}
+			}
+		}
+
+		double meanNorm = 0;
+
+		for( int f = 0; f < mean.length; f++ ){
+			mean[f] /= totalWeight;
+			meanNorm += mean[f] * mean[f];
+		}
+
+		// second pass: squared distance of each (unit) row to the mean
+		double[] q = new double[numRows];
+		double totalDistance = 0;
+
+		for( int row = 0; row < numRows; row++ ){
+			double dot = 0;
+
+			if( norms[row] > 0 ){
+				for( long p = data.rowStart(row); p < data.rowEnd(row); p++ ){
+					dot += data.getValue(p) * mean[data.getIndex(p)];
+				}
+
+				dot /= norms[row];
+			}
+
+			double length = norms[row] > 0 ? 1 : 0;
+			q[row] = data.getWeight(row) * Math.max(0, length - 2 * dot + meanNorm);
+			totalDistance += q[row];
+		}
+
+		for( int row = 0; row < numRows; row++ ){
+			double uniform = data.getWeight(row) / totalWeight;
+			q[row] = totalDistance > 0 ? 0.5 * uniform + 0.5 * q[row] / totalDistance : uniform;
+		}
+
+		// draw the rows, in row order so the result doesn't depend on the order of the draws
+		double[] cumulative = new double[numRows];
+		double running = 0;
+
+		for( int row = 0; row < numRows; row++ ){
+			running += q[row];
+			cumulative[row] = running;
+		}
+
+		Random random = new Random(seed);
+		int[] draws = new int[size];
+
+		for( int i = 0; i < size; i++ ){
+			int row = Arrays.binarySearch(cumulative, random.nextDouble() * running);
+			draws[i] = Math.min(row < 0 ? -row - 1 : row, numRows - 1);
+		}
+
+		Arrays.sort(draws);
+		SparseMatrix coreset = data.isDense() ? SparseMatrix.dense(directory, data.numColumns(), data.isSinglePrecision())
+				: new SparseMatrix(directory, data.isSinglePrecision());
+
+		for( int i = 0; i < size; ){
+			int row = draws[i];
+			int count = 0;
+
+			while( i < size && draws[i] == row ){
+				count++;
+				i++;
+			}
+
+			int length = (int)(data.rowEnd(row) - data.rowStart(row));
+			int[] rowIndices = new int[length];
+			double[] rowValues = new double[length];
+
+			for( int j = 0; j < length; j++ ){
+				rowIndices[j] = data.getIndex(data.rowStart(row) + j);
+				rowValues[j] = data.getValue(data.rowStart(row) + j);
+			}
+
+			double weight = count * data.getWeight(row) / (size * q[row] / running);
+			coreset.addRow(data.getLabel(row), weight, rowIndices, rowValues);
+		}
+
+		// keep the same width even if the last features weren't sampled
+		coreset.setNumColumns(data.numColumns());
+		return coreset;
+	}
+}
@@ -7,6 +7,15 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ml.utils.HashMapCounter;
+import ml.utils.Metrics;
+import ml.utils.events.FileFormatEvent;
+import ml.utils.events.TextParseEvent;
 
 public class DataFormatter {
 	
@@ -87,27 +96,7 @@ public class DataFormatter {
 	public void writeOutput(String output_file) throws IOException{
 		FileWriter output = new FileWriter(output_file);
 		for ( File f : filesToAggregate ) {
-			//assign correct label based on file pathname
-			if (f.getAbsolutePath().contains(".atheism"))
-				output.append(Integer.toString(ALT));
-			else if (f.getAbsolutePath().contains("comp.")) 
-				output.append(Integer.toString(COMP));
-			else if (f.getAbsolutePath().contains(".forsale"))
-				output.append(Integer.toString(FOR_SALE));
-			else if (f.getAbsolutePath().contains(".autos") || f.getAbsolutePath().contains(".motorcycles"))
-				output.append(Integer.toString(AUTOS));
-			else if (f.getAbsolutePath().contains("sport."))
-				output.append(Integer.toString(SPORTS));
-			else if (f.getAbsolutePath().contains("sci."))
-				output.append(Integer.toString(SCIENCE));
-			else if (f.getAbsolutePath().contains("soc.religion"))
-				output.append(Integer.toString(SOC_RELIGION));
-			else if (f.getAbsolutePath().contains("politics."))
-				output.append(Integer.toString(POLITICS));
-			else
-				output.append(Integer.toString(TALK_RELIGION));
-			
-			
+			output.append(Integer.toString(getLabel(f)));
 			output.append("\t");
 			
 			output.append(parseText(f));
@@ -116,6 +105,125 @@ public class DataFormatter {
 		
 		output.close();
 	}
+	
+	/**
+	 * Assign the correct label to a file based on its pathname
+	 * @param f
+	 * @return
+	 */
+	public int getLabel(File f) {
+		if (f.getAbsolutePath().contains(".atheism"))
+			return ALT;
+		else if (f.getAbsolutePath().contains("comp.")) 
+			return COMP;
+		else if (f.getAbsolutePath().contains(".forsale"))
+			return FOR_SALE;
+		else if (f.getAbsolutePath().contains(".autos") || f.getAbsolutePath().contains(".motorcycles"))
+			return AUTOS;
+		else if (f.getAbsolutePath().contains("sport."))
+			return SPORTS;
+		else if (f.getAbsolutePath().contains("sci."))
+			return SCIENCE;
+		else if (f.getAbsolutePath().contains("soc.religion"))
+			return SOC_RELIGION;
+		else if (f.getAbsolutePath().contains("politics."))
+			return POLITICS;
+		else
+			return TALK_RELIGION;
+	}
+	
+	/**
+	 * Parses and tokenizes all of the files straight into a DataSet, without going through a text file.
+	 * The examples and the feature numbering are the same as writing the output and reading it back
+	 * with DataSet(output_file, DataSet.TEXTFILE).
+	 * @param num_threads number of files to parse at the same time
+	 * @return
+	 * @throws IOException
+	 */
+	public DataSet toDataSet(int num_threads) throws IOException {
+		return toDataSet(null, num_threads);
+	}
+	
+	/**
+	 * Parses and tokenizes all of the files straight into a DataSet. The files are parsed and their words
+	 * counted in parallel; the words are then numbered in file order so the numbering doesn't depend on the threads.
+	 * @param output_file if not null, the text is also written here (in the same format as writeOutput)
+	 * @param num_threads number of files to parse at the same time
+	 * @return
+	 * @throws IOException
+	 */
+	public DataSet toDataSet(String output_file, int num_threads) throws IOException {
+		TextParseEvent event = new TextParseEvent();
+		event.source = filesToAggregate.isEmpty() ? "" : filesToAggregate.get(0).getParent();
+		event.begin();
+		
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, num_threads));
+		FileWriter output = output_file == null ? null : new FileWriter(output_file);
+		try {
+			ArrayList<Future<ParsedFile>> parsed = new ArrayList<Future<ParsedFile>>();
+			for ( File f : filesToAggregate ) {
+				parsed.add(pool.submit(() -> new ParsedFile(parseText(f))));
+			}
+			
+			FeatureDictionary.Builder dictionary = new FeatureDictionary.Builder();
+			VocabularyGrowth growth = new VocabularyGrowth(event.source);
+			ArrayList<Example> examples = new ArrayList<Example>(filesToAggregate.size());
+			long characters = 0;
+			for ( int i = 0; i < filesToAggregate.size(); i++ ) {
+				int label = getLabel(filesToAggregate.get(i));
+				ParsedFile file = parsed.get(i).get();
+				String text = file.text;
+				HashMapCounter<String> counter = file.counter;
+				
+				Example e = new Example();
+				e.setLabel(label);
+				for ( String word : counter.keySet() ) {
+					e.addFeature(dictionary.add(word), counter.get(word));
+				}
+				examples.add(e);
+				characters += text.length();
+				growth.update(examples.size(), dictionary.size());
+				
+				if (output != null) {
+					output.append(Integer.toString(label));
+					output.append("\t");
+					output.append(text);
+					output.append('\n');
+				}
+			}
+			
+			growth.report(examples.size(), dictionary.size());
+			DataSet data = new DataSet(dictionary.build());
+			data.addData(examples);
+			
+			event.documents = examples.size();
+			event.characters = characters;
+			event.vocabularySize = dictionary.size();
+			event.commit();
+			
+			Metrics metrics = Metrics.get();
+			metrics.count("text.documents", examples.size());
+			metrics.count("text.characters", characters);
+			metrics.record("text.vocabulary", dictionary.size());
+			return data;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Problem parsing", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+			if (output != null) {
+				output.close();
+			}
+		}
+	}
 
 	/**
 	 * Takes in a file and parses the file's text into only the useful information
@@ -126,6 +234,9 @@ public class DataFormatter {
 	 * @throws IOException
 	 */
 	public static String parseText(File file) throws IOException {
+		FileFormatEvent event = new FileFormatEvent();
+		event.begin();
+		
 		StringBuilder builder = new StringBuilder();
 		BufferedReader reader = new BufferedReader(new FileReader(file));
 		
@@ -176,7 +287,18 @@ public class DataFormatter {
 		}
 		
 		String text = builder.toString();
-		System.out.println(file.getName());
+		
+		if (event.shouldCommit()) {
+			event.file = file.getPath();
+			event.bytes = file.length();
+			event.textLength = text.length();
+			event.commit();
+		}
+		Metrics metrics = Metrics.get();
+		if (metrics.isEnabled()) {
+			metrics.count("formatter.documents", 1);
+			metrics.count("formatter.bytes", file.length());
+		}
 		return text;
 	}
 	
@@ -196,4 +318,17 @@ public class DataFormatter {
 		return builder.toString();
 	}
 	
+	/**
+	 * The text of one file and its word counts
+	 */
+	private static class ParsedFile {
+		private String text;
+		private HashMapCounter<String> counter;
+		
+		public ParsedFile(String text) {
+			this.text = text;
+			// split the same way TextDataReader splits a line (the label would be parts[0])
+			counter = TextDataReader.countWords(("0 " + text).split("\\s+"));
+		}
+	}
 }
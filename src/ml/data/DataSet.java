@@ -1,14 +1,11 @@
 package ml.data;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -19,8 +16,9 @@ import java.util.Set;
  */
 public class DataSet {
 	private ArrayList<Example> data = new ArrayList<Example>(); // the data/examples in this data set
-	// the mapping from feature indices to the name of the feature
-	private HashMap<Integer, String> featureMap = new HashMap<Integer, String>();
+	// the mapping between feature indices and the names of the features.  This
+	// can't change, so it is shared with any data sets created from this one
+	private FeatureDictionary features = new FeatureDictionary.Builder().build();
 	private HashSet<Double> labels = new HashSet<Double>();
 	
 	// some constants for different file types
@@ -34,42 +32,42 @@ public class DataSet {
 	 * @param fileType what type of file, using the class defined constants (e.g. CSVFILE)
 	 */
 	public DataSet(String filename, int fileType){
+		this(filename, fileType, 1);
+	}
+	
+	/**
+	 * Create a new data set, using multiple threads to read it where
+	 * the file type supports it.
+	 * 
+	 * @param filename the location of the file
+	 * @param fileType what type of file, using the class defined constants (e.g. CSVFILE)
+	 * @param numThreads how many threads to use when reading the file
+	 */
+	public DataSet(String filename, int fileType, int numThreads){
 		if( fileType == CSVFILE ){
-			int numColumns = -1;
-
-			// figure out how many columns there are then call
+			// the file is parsed straight into a dense block in parallel, then
+			// the examples are created from that (callers that don't need
+			// Examples can use MappedCSVReader.read directly)
 			try {
-				BufferedReader in = new BufferedReader(new FileReader(filename));
-
-				// ignore any lines at the beginning that start with #
-				String line = in.readLine();
-
-				while( line.startsWith("#")){
-					line = in.readLine();
-				}
-				
-				// parse the headers
-				String[] headers = line.split(",");
-				int labelIndex = headers.length-1;					
-				int featureIndex = 0;
-					
-				for( int i = 0; i < headers.length; i++ ){
-					if( i != labelIndex ){
-						featureMap.put(featureIndex, headers[i]);
-						featureIndex++;
-					}
-				}
-					
-				CSVDataReader reader = new CSVDataReader(in, labelIndex);
-				initialize(reader);
+				initialize(new MappedCSVReader(filename, numThreads).read());
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				throw new RuntimeException("Couldn't read " + filename, e);
 			}
 		}else if( fileType == TEXTFILE ){
-			TextDataReader reader = new TextDataReader(filename);
-			initialize(reader);
-			featureMap = reader.getFeatureMap();
+			if( numThreads > 1 ){
+				try {
+					ParallelTextDataReader reader = new ParallelTextDataReader(filename, numThreads);
+					reader.read();
+					addData(reader.getExamples());
+					features = reader.getFeatureDictionary();
+				} catch (IOException e) {
+					throw new RuntimeException("Couldn't read " + filename, e);
+				}
+			}else{
+				TextDataReader reader = new TextDataReader(filename);
+				initialize(reader);
+				features = reader.getFeatureDictionary();
+			}
 		}
 	}
 	
@@ -85,26 +83,82 @@ public class DataSet {
 			labels.add(next.getLabel());
 		}
 	}
+	
+	/**
+	 * Create a new data set with the rows of a dense matrix (e.g. from
+	 * MappedCSVReader).  Zero values aren't stored in the examples.
+	 * 
+	 * @param matrix
+	 */
+	public DataSet(DenseMatrix matrix){
+		initialize(matrix);
+	}
+	
+	/**
+	 * Populate this dataset with the features and rows of matrix.
+	 * 
+	 * @param matrix
+	 */
+	private void initialize(DenseMatrix matrix){
+		FeatureDictionary.Builder builder = new FeatureDictionary.Builder();
+		
+		for( String header: matrix.getFeatureNames() ){
+			builder.append(header);
+		}
+		
+		features = builder.build();
+		data.ensureCapacity(matrix.numRows());
+		
+		for( int i = 0; i < matrix.numRows(); i++ ){
+			Example next = matrix.getExample(i);
+			data.add(next);
+			labels.add(next.getLabel());
+		}
+	}
 		
 	/**
 	 * Constructs a new empty dataset (i.e. no examples) with the features
-	 * specified in the featuremap
+	 * specified in the featuremap.  The map is copied; use
+	 * DataSet(other.getFeatureDictionary()) to share another data set's features.
 	 * 
 	 * @param s
 	 */
 	public DataSet(HashMap<Integer, String> featureMap){
-		this.featureMap = new HashMap<Integer, String>(featureMap);
+		this.features = FeatureDictionary.fromFeatureMap(featureMap);
+	}
+	
+	/**
+	 * Constructs a new empty dataset (i.e. no examples) that shares
+	 * the features of another data set
+	 * 
+	 * @param features
+	 */
+	public DataSet(FeatureDictionary features){
+		this.features = features;
 	}
 	
 	/**
 	 * Get the mapping from feature indices to feature names.  This is
 	 * mostly useful when trying to print out the final models.
 	 * 
-	 * @return feature map
+	 * Note: this is a copy of the feature dictionary, so changing it doesn't
+	 * change the data set's features (it used to be the data set's own map).
+	 * Use getFeatureDictionary() to look features up without copying.
+	 * 
+	 * @return the feature map
 	 */
 	public HashMap<Integer,String> getFeatureMap(){
-		return featureMap;
-	}	
+		return features.toFeatureMap();
+	}
+	
+	/**
+	 * Get the mapping between feature indices and feature names
+	 * 
+	 * @return the feature dictionary
+	 */
+	public FeatureDictionary getFeatureDictionary(){
+		return features;
+	}
 	
 	/**
 	 * Get the examples associated with this data set
@@ -147,12 +201,23 @@ public class DataSet {
 	
 	/**
 	 * Get all of the feature indices that are contained in this
-	 * data set.
+	 * data set.  The indices are always 0 to getNumFeatures()-1, so
+	 * this is a read-only view of that range rather than a stored set.
 	 * 
 	 * @return
 	 */
 	public Set<Integer> getAllFeatureIndices(){
-		return featureMap.keySet();
+		return features.indices();
+	}
+	
+	/**
+	 * Get the number of features in this data set (the feature
+	 * indices are 0 to getNumFeatures()-1)
+	 * 
+	 * @return
+	 */
+	public int getNumFeatures(){
+		return features.size();
 	}
 	
 	/**
@@ -189,10 +254,10 @@ public class DataSet {
 			}
 		}
 		
-		DataSet dTrain = new DataSet(featureMap);
+		DataSet dTrain = new DataSet(features);
 		dTrain.addData(train);
 		
-		DataSet dTest = new DataSet(featureMap);
+		DataSet dTest = new DataSet(features);
 		dTest.addData(test);
 
 		return new DataSetSplit(dTrain, dTest);
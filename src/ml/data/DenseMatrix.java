@@ -0,0 +1,143 @@
+package ml.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A dense, row-major block of numeric examples.  All of the feature values
+ * live in a single double array (row i, column j is at i*numColumns + j) with
+ * the labels kept in a separate array, so no per-example objects are needed.
+ *
+ * This is what MappedCSVReader produces for dense numeric CSV files.
+ */
+public class DenseMatrix {
+	private final String[] featureNames; // names of the feature columns (the label column is not included)
+	private final double[] values; // row-major feature values
+	private final double[] labels; // one label per row
+	private final int numRows;
+	private final int numColumns;
+
+	/**
+	 * @param featureNames the names of the features, one per column
+	 * @param values the row-major feature values (numRows * featureNames.length of them)
+	 * @param labels the label for each row
+	 */
+	public DenseMatrix(String[] featureNames, double[] values, double[] labels){
+		if( values.length != labels.length * featureNames.length ){
+			throw new IllegalArgumentException("Expected " + labels.length * featureNames.length +
+					" values for a " + labels.length + "x" + featureNames.length + " matrix, got " + values.length);
+		}
+
+		this.featureNames = featureNames;
+		this.values = values;
+		this.labels = labels;
+		this.numRows = labels.length;
+		this.numColumns = featureNames.length;
+	}
+
+	public int numRows(){
+		return numRows;
+	}
+
+	public int numColumns(){
+		return numColumns;
+	}
+
+	/**
+	 * Get the value of feature column for row
+	 *
+	 * @param row
+	 * @param column
+	 * @return the feature value
+	 */
+	public double get(int row, int column){
+		return values[row * numColumns + column];
+	}
+
+	/**
+	 * @param row
+	 * @return the label of row
+	 */
+	public double getLabel(int row){
+		return labels[row];
+	}
+
+	/**
+	 * Get the underlying row-major array.  Changes to the array
+	 * are reflected in this matrix.
+	 *
+	 * @return the values
+	 */
+	public double[] getValues(){
+		return values;
+	}
+
+	/**
+	 * @return the label of every row
+	 */
+	public double[] getLabels(){
+		return labels;
+	}
+
+	/**
+	 * @return the names of the features, indexed by column
+	 */
+	public String[] getFeatureNames(){
+		return featureNames;
+	}
+
+	/**
+	 * Create a (sparse) Example with the values from row.  Columns with a
+	 * value of 0 are left out (getFeature returns 0 for them anyway).
+	 *
+	 * @param row
+	 * @return the example
+	 */
+	public Example getExample(int row){
+		Example e = new Example();
+		int offset = row * numColumns;
+
+		for( int j = 0; j < numColumns; j++ ){
+			if( values[offset + j] != 0 ){
+				e.addFeature(j, values[offset + j]);
+			}
+		}
+
+		e.setLabel(labels[row]);
+		return e;
+	}
+
+	/**
+	 * Copy the non-zero values into a new off-heap matrix (e.g. to train
+	 * KMeansClassifier on) without creating any Examples.
+	 *
+	 * @param directory where to put the backing files, or null to keep everything in direct buffers
+	 * @param singlePrecision whether to store the values as floats
+	 * @return the matrix
+	 * @throws IOException
+	 */
+	public SparseMatrix toSparseMatrix(File directory, boolean singlePrecision) throws IOException {
+		SparseMatrix matrix = new SparseMatrix(directory, singlePrecision);
+		int[] rowIndices = new int[numColumns];
+		double[] rowValues = new double[numColumns];
+
+		for( int i = 0; i < numRows; i++ ){
+			int offset = i * numColumns;
+			int length = 0;
+
+			for( int j = 0; j < numColumns; j++ ){
+				if( values[offset + j] != 0 ){
+					rowIndices[length] = j;
+					rowValues[length] = values[offset + j];
+					length++;
+				}
+			}
+
+			matrix.addRow(labels[i], 1.0, Arrays.copyOf(rowIndices, length), Arrays.copyOf(rowValues, length));
+		}
+
+		matrix.setNumColumns(numColumns);
+		return matrix;
+	}
+}
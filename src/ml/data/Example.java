@@ -4,6 +4,7 @@ import java.util.Collections;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -18,6 +19,7 @@ public class Example {
 	// feature index to the actual name.
 	private HashMap<Integer, Double> sparseData;
 	private double label;  // the label (assuming it has one)
+	private double weight = 1.0; // how much this example counts (e.g. the number of near-duplicates it stands for)
 	
 	public Example(){
 		sparseData = new HashMap<Integer, Double>();
@@ -26,6 +28,7 @@ public class Example {
 	public Example(Example e){
 		// copy everything
 		label = e.label;
+		weight = e.weight;
 		sparseData = new HashMap<Integer,Double>(e.sparseData);
 	}
 	
@@ -86,6 +89,24 @@ public class Example {
 		return label;
 	}
 	
+	/**
+	 * Set the weight of this example, e.g. the number of examples it represents.
+	 * 
+	 * @param weight
+	 */
+	public void setWeight(double weight){
+		this.weight = weight;
+	}
+	
+	/**
+	 * Get the weight of this example (1.0 unless it has been changed).
+	 * 
+	 * @return the example weight
+	 */
+	public double getWeight(){
+		return weight;
+	}
+	
 	/**
 	 * Checks for equality between two examples *ignoring* the label
 	 * 
@@ -111,6 +132,14 @@ public class Example {
 	}
 	
 	public String toString(HashMap<Integer, String> featureMap){
+		return toString((Map<Integer, String>)featureMap);
+	}
+	
+	/**
+	 * @param featureMap feature names by index, e.g. FeatureDictionary.asMap()
+	 * @return the example with feature names instead of indices
+	 */
+	public String toString(Map<Integer, String> featureMap){
 		StringBuffer buffer = new StringBuffer();
 		buffer.append(label);
 		
@@ -0,0 +1,395 @@
+package ml.data;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable mapping between feature names (e.g. words) and feature indices 0 to size()-1.
+ *
+ * All of the names are packed one after another as UTF-8 bytes in a single array, with an offset
+ * array marking where each one starts, so looking up the name of an index is just a slice of that
+ * array.  Going the other way uses an open-addressing hash table over the packed bytes that only
+ * stores indices.  This takes a fraction of the space of a HashMap<String,Integer> plus its inverse,
+ * and since it can't change, one dictionary can be shared by every DataSet built from the same data.
+ *
+ * Use a FeatureDictionary.Builder to create one.
+ */
+public class FeatureDictionary implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final byte[] bytes; // all of the names, packed as UTF-8
+	private final int[] offsets; // name i is bytes[offsets[i]] up to bytes[offsets[i+1]]
+	private final int[] table; // open-addressing hash table of index+1 (0 means empty)
+	private final int size;
+
+	private FeatureDictionary(byte[] bytes, int[] offsets, int[] table, int size){
+		this.bytes = bytes;
+		this.offsets = offsets;
+		this.table = table;
+		this.size = size;
+	}
+
+	/**
+	 * @return the number of features
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Get the index of a feature
+	 *
+	 * @param name
+	 * @return the index, or -1 if there isn't a feature with that name
+	 */
+	public int getIndex(String name){
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		return find(bytes, offsets, table, key, 0, key.length);
+	}
+
+	/**
+	 * Get the name of a feature
+	 *
+	 * @param index
+	 * @return the name
+	 */
+	public String getName(int index){
+		return new String(bytes, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Create a HashMap from feature index to feature name.  This is for code that still
+	 * wants the old representation; it creates a new map on every call.
+	 *
+	 * @return the feature map
+	 */
+	public HashMap<Integer, String> toFeatureMap(){
+		HashMap<Integer, String> featureMap = new HashMap<Integer, String>();
+
+		for( int i = 0; i < size; i++ ){
+			featureMap.put(i, getName(i));
+		}
+
+		return featureMap;
+	}
+
+	/**
+	 * A read-only view of this dictionary as a map from feature index to feature name.
+	 * Nothing is copied; names are decoded as they're looked up.  Changing the map throws
+	 * an UnsupportedOperationException; use toFeatureMap() for a copy that can be changed.
+	 *
+	 * @return the feature map
+	 */
+	public Map<Integer, String> asMap(){
+		return new FeatureMap(this);
+	}
+
+	/**
+	 * The feature indices, 0 to size()-1, as a read-only set (nothing is stored)
+	 *
+	 * @return the indices
+	 */
+	public Set<Integer> indices(){
+		return new IndexSet(size);
+	}
+
+	/**
+	 * Create a dictionary from a feature map.  Indices missing from the map (there
+	 * shouldn't normally be any) get an empty name.  A map from asMap just gives
+	 * back its dictionary.
+	 *
+	 * @param featureMap
+	 * @return the dictionary
+	 */
+	public static FeatureDictionary fromFeatureMap(Map<Integer, String> featureMap){
+		if( featureMap instanceof FeatureMap ){
+			return ((FeatureMap)featureMap).dictionary;
+		}
+
+		int max = -1;
+
+		for( int index: featureMap.keySet() ){
+			max = Math.max(max, index);
+		}
+
+		Builder builder = new Builder();
+
+		for( int i = 0; i <= max; i++ ){
+			String name = featureMap.get(i);
+			builder.append(name == null ? "" : name);
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Look up the name in key[start..end) in the table
+	 *
+	 * @return the index of the name, or -1 if it's not there
+	 */
+	private static int find(byte[] bytes, int[] offsets, int[] table, byte[] key, int start, int end){
+		int mask = table.length - 1;
+		int slot = hash(key, start, end) & mask;
+
+		while( table[slot] != 0 ){
+			int index = table[slot] - 1;
+
+			if( equals(bytes, offsets[index], offsets[index + 1], key, start, end) ){
+				return index;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	private static boolean equals(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd){
+		if( aEnd - aStart != bEnd - bStart ){
+			return false;
+		}
+
+		for( int i = 0; i < aEnd - aStart; i++ ){
+			if( a[aStart + i] != b[bStart + i] ){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * FNV-1a hash of the bytes, with a final mix so the low bits are usable for the table
+	 */
+	private static int hash(byte[] key, int start, int end){
+		int h = 0x811C9DC5;
+
+		for( int i = start; i < end; i++ ){
+			h ^= (key[i] & 0xff);
+			h *= 0x01000193;
+		}
+
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * The integers 0 to size-1
+	 */
+	private static class IndexSet extends AbstractSet<Integer> {
+		private final int size;
+
+		IndexSet(int size){
+			this.size = size;
+		}
+
+		@Override
+		public int size(){
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object o){
+			return o instanceof Integer && (Integer)o >= 0 && (Integer)o < size;
+		}
+
+		@Override
+		public Iterator<Integer> iterator(){
+			return new Iterator<Integer>(){
+				private int next = 0;
+
+				public boolean hasNext(){
+					return next < size;
+				}
+
+				public Integer next(){
+					if( next >= size ){
+						throw new NoSuchElementException();
+					}
+
+					return next++;
+				}
+			};
+		}
+	}
+
+	/**
+	 * The read-only map view returned by asMap
+	 */
+	private static class FeatureMap extends AbstractMap<Integer, String> {
+		private final FeatureDictionary dictionary;
+
+		FeatureMap(FeatureDictionary dictionary){
+			this.dictionary = dictionary;
+		}
+
+		@Override
+		public int size(){
+			return dictionary.size;
+		}
+
+		@Override
+		public boolean containsKey(Object key){
+			return key instanceof Integer && (Integer)key >= 0 && (Integer)key < dictionary.size;
+		}
+
+		@Override
+		public String get(Object key){
+			return containsKey(key) ? dictionary.getName((Integer)key) : null;
+		}
+
+		@Override
+		public Set<Integer> keySet(){
+			return dictionary.indices();
+		}
+
+		@Override
+		public Set<Map.Entry<Integer, String>> entrySet(){
+			return new AbstractSet<Map.Entry<Integer, String>>(){
+				public int size(){
+					return dictionary.size;
+				}
+
+				public Iterator<Map.Entry<Integer, String>> iterator(){
+					final Iterator<Integer> indices = dictionary.indices().iterator();
+
+					return new Iterator<Map.Entry<Integer, String>>(){
+						public boolean hasNext(){
+							return indices.hasNext();
+						}
+
+						public Map.Entry<Integer, String> next(){
+							int index = indices.next();
+							return new AbstractMap.SimpleImmutableEntry<Integer, String>(index, dictionary.getName(index));
+						}
+					};
+				}
+			};
+		}
+	}
+
+	/**
+	 * Builds up a FeatureDictionary one name at a time.  Not thread-safe.
+	 */
+	public static class Builder {
+		private byte[] bytes = new byte[1024];
+		private int[] offsets = new int[65];
+		private int[] table = new int[128];
+		private int size = 0;
+
+		/**
+		 * Get the index of name, adding it as a new feature if it isn't there yet
+		 *
+		 * @param name
+		 * @return the index of the feature
+		 */
+		public int add(String name){
+			byte[] key = name.getBytes(StandardCharsets.UTF_8);
+			int index = find(bytes, offsets, table, key, 0, key.length);
+			return index != -1 ? index : insert(key);
+		}
+
+		/**
+		 * Add name as a new feature even if there is already one with the same name
+		 * (looking the name up will find the first one).  Used when the indices have to
+		 * line up with something else, like the columns of a CSV file.
+		 *
+		 * @param name
+		 * @return the index of the new feature
+		 */
+		public int append(String name){
+			return insert(name.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * @param name
+		 * @return the index of name, or -1 if it hasn't been added
+		 */
+		public int getIndex(String name){
+			byte[] key = name.getBytes(StandardCharsets.UTF_8);
+			return find(bytes, offsets, table, key, 0, key.length);
+		}
+
+		public String getName(int index){
+			return new String(bytes, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+		}
+
+		public int size(){
+			return size;
+		}
+
+		private int insert(byte[] key){
+			int start = offsets[size];
+
+			if( start + key.length > bytes.length ){
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, start + key.length));
+			}
+
+			if( size + 2 > offsets.length ){
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			}
+
+			System.arraycopy(key, 0, bytes, start, key.length);
+			offsets[size + 1] = start + key.length;
+			int index = size++;
+
+			if( size * 2 > table.length ){
+				rehash(table.length * 2);
+			}else{
+				put(table, index);
+			}
+
+			return index;
+		}
+
+		/**
+		 * Put index in the table unless there's already a feature with the same name
+		 */
+		private void put(int[] t, int index){
+			int mask = t.length - 1;
+			int slot = hash(bytes, offsets[index], offsets[index + 1]) & mask;
+
+			while( t[slot] != 0 ){
+				int other = t[slot] - 1;
+
+				if( FeatureDictionary.equals(bytes, offsets[other], offsets[other + 1], bytes, offsets[index], offsets[index + 1]) ){
+					return;
+				}
+
+				slot = (slot + 1) & mask;
+			}
+
+			t[slot] = index + 1;
+		}
+
+		private void rehash(int capacity){
+			table = new int[capacity];
+
+			for( int i = 0; i < size; i++ ){
+				put(table, i);
+			}
+		}
+
+		/**
+		 * Create the dictionary.  The builder can keep being used afterwards.
+		 *
+		 * @return a dictionary with all of the features added so far
+		 */
+		public FeatureDictionary build(){
+			int[] finalTable = new int[Math.max(2, Integer.highestOneBit(Math.max(1, size * 2 - 1)) << 1)];
+
+			for( int i = 0; i < size; i++ ){
+				put(finalTable, i);
+			}
+
+			return new FeatureDictionary(Arrays.copyOf(bytes, offsets[size]), Arrays.copyOf(offsets, size + 1), finalTable, size);
+		}
+	}
+}
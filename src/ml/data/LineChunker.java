@@ -0,0 +1,93 @@
+package ml.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Helper for splitting part of a file into chunks that can be read independently.
+ * Every chunk (except possibly the last) ends just after a newline so no line
+ * is ever split between two chunks.
+ */
+class LineChunker {
+	// a single mapping can be at most 2GB, so no chunk is allowed to get close to that
+	static final long MAX_CHUNK_SIZE = 1L << 30;
+
+	/**
+	 * Split the file from start to size into chunks.
+	 *
+	 * @param channel the file
+	 * @param start where the first line starts
+	 * @param size the size of the file
+	 * @param minChunks the minimum number of chunks to aim for (e.g. the number of threads)
+	 * @return the chunk boundaries (chunk i is from bounds[i] to bounds[i+1])
+	 * @throws IOException
+	 */
+	static long[] split(FileChannel channel, long start, long size, int minChunks) throws IOException {
+		long dataSize = size - start;
+		long numChunks = Math.max(minChunks, (dataSize + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+		long chunkSize = Math.max(1, dataSize / Math.max(1, numChunks));
+
+		ArrayList<Long> bounds = new ArrayList<Long>();
+		bounds.add(start);
+
+		for( long nominal = start + chunkSize; nominal < size; nominal += chunkSize ){
+			long previous = bounds.get(bounds.size() - 1);
+
+			if( nominal <= previous ){
+				continue;
+			}
+
+			// move forward until just past the next newline
+			long boundary = nextLineStart(channel, nominal + 1, size);
+
+			if( boundary < size ){
+				bounds.add(boundary);
+			}
+		}
+
+		bounds.add(size);
+
+		long[] result = new long[bounds.size()];
+
+		for( int i = 0; i < result.length; i++ ){
+			result[i] = bounds.get(i);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Find where the first line that starts at or after position starts.
+	 *
+	 * @param channel the file
+	 * @param position
+	 * @param size the size of the file
+	 * @return the start of that line, or size if there isn't one
+	 * @throws IOException
+	 */
+	static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+		if( position <= 0 ){
+			return 0;
+		}
+
+		ByteBuffer scan = ByteBuffer.allocate(4096);
+		position--; // a line starts at position if the byte before it is a newline
+
+		while( position < size ){
+			scan.clear();
+			int read = channel.read(scan, position);
+
+			for( int i = 0; i < read; i++ ){
+				if( scan.get(i) == '\n' ){
+					return position + i + 1;
+				}
+			}
+
+			position += Math.max(read, 1);
+		}
+
+		return size;
+	}
+}
@@ -0,0 +1,398 @@
+package ml.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A reader for large, dense, numeric CSV files.
+ *
+ * The format is the same one DataSet expects for CSVFILE: optional lines starting with #,
+ * then a header line with the feature names, then one example per line with the label
+ * as the last column.
+ *
+ * Rather than reading line by line, the file is memory-mapped and split into newline-aligned
+ * chunks that are parsed in parallel straight into a DenseMatrix.
+ */
+public class MappedCSVReader {
+	// powers of ten that are exactly representable as doubles
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private String filename;
+	private int numThreads;
+
+	/**
+	 * @param filename the csv file to read
+	 * @param numThreads how many threads to parse with
+	 */
+	public MappedCSVReader(String filename, int numThreads){
+		this.filename = filename;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Read the whole file.
+	 *
+	 * @return the data as a dense matrix
+	 * @throws IOException
+	 */
+	public DenseMatrix read() throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+
+		try{
+			long size = channel.size();
+
+			// parse the headers
+			MappedByteBuffer start = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, LineChunker.MAX_CHUNK_SIZE));
+			long[] headerBounds = findHeader(start);
+			byte[] headerBytes = new byte[(int)(headerBounds[1] - headerBounds[0])];
+			start.position((int)headerBounds[0]);
+			start.get(headerBytes);
+
+			String[] headers = new String(headerBytes, StandardCharsets.UTF_8).trim().split(",");
+			String[] featureNames = Arrays.copyOf(headers, headers.length - 1);
+
+			long[] bounds = LineChunker.split(channel, headerBounds[2], size, numThreads);
+			ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+			ArrayList<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+
+			try{
+				for( int i = 0; i + 1 < bounds.length; i++ ){
+					final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i+1] - bounds[i]);
+					final int numColumns = headers.length;
+
+					futures.add(pool.submit(() -> parseChunk(buffer, numColumns)));
+				}
+
+				ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+				long numRows = 0;
+
+				for( Future<Chunk> f: futures ){
+					Chunk c = f.get();
+					chunks.add(c);
+					numRows += c.numRows;
+				}
+
+				if( numRows * featureNames.length > Integer.MAX_VALUE ){
+					throw new IOException("Too many values for a single matrix: " + numRows + "x" + featureNames.length);
+				}
+
+				// stitch the chunks back together in file order
+				double[] values = new double[(int)numRows * featureNames.length];
+				double[] labels = new double[(int)numRows];
+				int row = 0;
+
+				for( Chunk c: chunks ){
+					System.arraycopy(c.values, 0, values, row * featureNames.length, c.numRows * featureNames.length);
+					System.arraycopy(c.labels, 0, labels, row, c.numRows);
+					row += c.numRows;
+				}
+
+				return new DenseMatrix(featureNames, values, labels);
+			}catch( InterruptedException e ){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading " + filename, e);
+			}catch( ExecutionException e ){
+				if( e.getCause() instanceof IOException ){
+					throw (IOException)e.getCause();
+				}
+
+				throw new IOException("Problem parsing " + filename, e.getCause());
+			}finally{
+				pool.shutdownNow();
+			}
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Find the header line, skipping any lines at the beginning that start with #
+	 *
+	 * @param buffer the start of the file
+	 * @return the start and end of the header line and the offset where the data begins
+	 * @throws IOException
+	 */
+	private long[] findHeader(ByteBuffer buffer) throws IOException {
+		int lineStart = 0;
+
+		while( lineStart < buffer.limit() ){
+			int lineEnd = lineStart;
+
+			while( lineEnd < buffer.limit() && buffer.get(lineEnd) != '\n' ){
+				lineEnd++;
+			}
+
+			if( buffer.get(lineStart) != '#' ){
+				return new long[]{lineStart, lineEnd, Math.min(lineEnd + 1, buffer.limit())};
+			}
+
+			lineStart = lineEnd + 1;
+		}
+
+		throw new IOException("No header line found in " + filename);
+	}
+
+	/**
+	 * Parse all of the lines in a chunk.
+	 *
+	 * @param buffer the chunk, which always starts at the beginning of a line
+	 * @param numColumns number of columns in each line (including the label)
+	 * @return the parsed rows
+	 * @throws IOException if a line doesn't have the right number of columns
+	 */
+	private Chunk parseChunk(ByteBuffer buffer, int numColumns) throws IOException {
+		Chunk chunk = new Chunk(numColumns - 1);
+		int limit = buffer.limit();
+		int pos = 0;
+		double[] row = new double[numColumns];
+
+		while( pos < limit ){
+			byte first = buffer.get(pos);
+
+			// skip blank lines and comments
+			if( first == '\n' || first == '\r' || first == '#' ){
+				while( pos < limit && buffer.get(pos) != '\n' ){
+					pos++;
+				}
+
+				pos++;
+				continue;
+			}
+
+			int column = 0;
+
+			while( true ){
+				int fieldEnd = pos;
+
+				while( fieldEnd < limit ){
+					byte b = buffer.get(fieldEnd);
+
+					if( b == ',' || b == '\n' || b == '\r' ){
+						break;
+					}
+
+					fieldEnd++;
+				}
+
+				if( column >= numColumns ){
+					throw new IOException("Expected " + numColumns + " columns but found more in: " + lineText(buffer, pos));
+				}
+
+				row[column++] = parseDouble(buffer, pos, fieldEnd);
+				pos = fieldEnd;
+
+				if( pos < limit && buffer.get(pos) == ',' ){
+					pos++;
+				}else{
+					break;
+				}
+			}
+
+			if( column != numColumns ){
+				throw new IOException("Expected " + numColumns + " columns but found " + column);
+			}
+
+			chunk.add(row);
+
+			// move past the end of the line
+			while( pos < limit && buffer.get(pos) != '\n' ){
+				pos++;
+			}
+
+			pos++;
+		}
+
+		return chunk;
+	}
+
+	/**
+	 * Parse a number in buffer between start and end.  Numbers with at most
+	 * 18 significant digits and a small exponent are converted directly (and
+	 * exactly); anything else is handed off to Double.parseDouble.
+	 *
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @return the value
+	 */
+	static double parseDouble(ByteBuffer buffer, int start, int end){
+		int pos = start;
+
+		while( pos < end && buffer.get(pos) == ' ' ){
+			pos++;
+		}
+
+		while( end > pos && buffer.get(end - 1) == ' ' ){
+			end--;
+		}
+
+		boolean negative = false;
+
+		if( pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+') ){
+			negative = buffer.get(pos) == '-';
+			pos++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean sawDigit = false;
+		boolean truncated = false; // whether any significant digits didn't fit in the mantissa
+
+		while( pos < end && buffer.get(pos) >= '0' && buffer.get(pos) <= '9' ){
+			sawDigit = true;
+
+			if( digits < 18 ){
+				mantissa = mantissa * 10 + (buffer.get(pos) - '0');
+
+				if( mantissa != 0 ){
+					digits++;
+				}
+			}else{
+				exponent++;
+				truncated = true;
+			}
+
+			pos++;
+		}
+
+		if( pos < end && buffer.get(pos) == '.' ){
+			pos++;
+
+			while( pos < end && buffer.get(pos) >= '0' && buffer.get(pos) <= '9' ){
+				sawDigit = true;
+
+				if( digits < 18 ){
+					mantissa = mantissa * 10 + (buffer.get(pos) - '0');
+					exponent--;
+
+					if( mantissa != 0 ){
+						digits++;
+					}
+				}else{
+					truncated = true;
+				}
+
+				pos++;
+			}
+		}
+
+		if( sawDigit && pos < end && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E') ){
+			pos++;
+			boolean negativeExponent = false;
+
+			if( pos < end && (buffer.get(pos) == '-' || buffer.get(pos) == '+') ){
+				negativeExponent = buffer.get(pos) == '-';
+				pos++;
+			}
+
+			int explicit = 0;
+			boolean sawExponentDigit = false;
+
+			while( pos < end && buffer.get(pos) >= '0' && buffer.get(pos) <= '9' ){
+				sawExponentDigit = true;
+				explicit = Math.min(explicit * 10 + (buffer.get(pos) - '0'), 100000);
+				pos++;
+			}
+
+			if( !sawExponentDigit ){
+				return slowParse(buffer, start, end);
+			}
+
+			exponent += negativeExponent ? -explicit : explicit;
+		}
+
+		// only use the fast path when the result is guaranteed to be exact
+		if( !sawDigit || truncated || pos != end || mantissa >= (1L << 53) || exponent < -22 || exponent > 22 ){
+			return slowParse(buffer, start, end);
+		}
+
+		double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+		return negative ? -value : value;
+	}
+
+	private static double slowParse(ByteBuffer buffer, int start, int end){
+		byte[] bytes = new byte[end - start];
+
+		for( int i = 0; i < bytes.length; i++ ){
+			bytes[i] = buffer.get(start + i);
+		}
+
+		return Double.parseDouble(new String(bytes, StandardCharsets.UTF_8).trim());
+	}
+
+	private static String lineText(ByteBuffer buffer, int pos){
+		int end = pos;
+
+		while( end < buffer.limit() && buffer.get(end) != '\n' ){
+			end++;
+		}
+
+		byte[] bytes = new byte[end - pos];
+
+		for( int i = 0; i < bytes.length; i++ ){
+			bytes[i] = buffer.get(pos + i);
+		}
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The rows parsed from one chunk of the file
+	 */
+	private static class Chunk {
+		// the most elements a Java array can have
+		private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+		private double[] values;
+		private double[] labels;
+		private int numFeatures;
+		private int numRows = 0;
+
+		public Chunk(int numFeatures){
+			this.numFeatures = numFeatures;
+			int rows = Math.max(1, Math.min(1024, MAX_ARRAY_SIZE / Math.max(1, numFeatures)));
+			values = new double[rows * Math.max(1, numFeatures)];
+			labels = new double[rows];
+		}
+
+		/**
+		 * Add a row, where the last entry is the label
+		 *
+		 * @param row
+		 * @throws IOException if the chunk has more values than fit in an array
+		 */
+		public void add(double[] row) throws IOException {
+			if( numRows == labels.length ){
+				// sizes in long, since rows x features can overflow an int for wide or large chunks
+				long width = Math.max(1, numFeatures);
+				long rows = Math.min((long)labels.length * 2, MAX_ARRAY_SIZE / width);
+
+				if( rows <= numRows ){
+					throw new IOException("Too many values for a single chunk: " + (numRows + 1L) + "x" + numFeatures);
+				}
+
+				labels = Arrays.copyOf(labels, (int)rows);
+				values = Arrays.copyOf(values, (int)(rows * width));
+			}
+
+			System.arraycopy(row, 0, values, numRows * numFeatures, numFeatures);
+			labels[numRows] = row[numFeatures];
+			numRows++;
+		}
+	}
+}
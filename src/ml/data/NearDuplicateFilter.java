@@ -0,0 +1,362 @@
+package ml.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Removes near-duplicate examples (e.g. cross-posts and quoted replies) from a data set.
+ *
+ * Each example's feature set is summarized with a MinHash signature, and the signatures are split
+ * into bands for locality sensitive hashing: examples that agree on every value in some band land in
+ * the same bucket and become candidates.  Candidates whose signatures agree on at least the threshold
+ * fraction of values (an estimate of the Jaccard similarity of their feature sets) are merged.  Examples
+ * with exactly the same signature (e.g. identical or empty documents) are grouped up front, so only one
+ * of them goes into the buckets.  Each
+ * group of near-duplicates is collapsed into a single example, the first one in the data set, whose
+ * weight is the total weight of the group.
+ *
+ * Signatures and bands are computed in parallel.
+ */
+public class NearDuplicateFilter {
+	private int numBands;
+	private int rowsPerBand;
+	private double threshold;
+	private int numThreads;
+	private boolean requireSameLabel = false;
+
+	private long[] hashSeeds; // one per signature value
+	private int maxDifferent; // most signature values that can differ between near-duplicates
+
+	/**
+	 * @param numBands number of LSH bands
+	 * @param rowsPerBand number of signature values in each band (signatures have numBands * rowsPerBand values)
+	 * @param threshold minimum estimated Jaccard similarity for two examples to be near-duplicates
+	 * @param seed random seed for the hash functions
+	 * @param numThreads
+	 */
+	public NearDuplicateFilter(int numBands, int rowsPerBand, double threshold, long seed, int numThreads){
+		this.numBands = numBands;
+		this.rowsPerBand = rowsPerBand;
+		this.threshold = threshold;
+		this.numThreads = Math.max(1, numThreads);
+
+		Random random = new Random(seed);
+		hashSeeds = new long[numBands * rowsPerBand];
+
+		while( maxDifferent < hashSeeds.length
+				&& (double)(hashSeeds.length - maxDifferent - 1) / hashSeeds.length >= threshold ){
+			maxDifferent++;
+		}
+
+		for( int i = 0; i < hashSeeds.length; i++ ){
+			hashSeeds[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * A filter with 32 bands of 4 rows (128 hashes), which catches most pairs above
+	 * about 0.5 similarity, and a threshold of 0.8.
+	 *
+	 * @param numThreads
+	 */
+	public NearDuplicateFilter(int numThreads){
+		this(32, 4, 0.8, 451, numThreads);
+	}
+
+	/**
+	 * Only merge examples that also have the same label (by default labels are ignored
+	 * and the group takes the label of its first example).
+	 *
+	 * @param requireSameLabel
+	 */
+	public void setRequireSameLabel(boolean requireSameLabel){
+		this.requireSameLabel = requireSameLabel;
+	}
+
+	/**
+	 * Create a new data set (sharing the same features) with the near-duplicates collapsed.
+	 * The examples in data are not changed.
+	 *
+	 * @param data
+	 * @return the filtered data
+	 */
+	public DataSet filter(DataSet data){
+		final ArrayList<Example> examples = data.getData();
+		final int n = examples.size();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+		try{
+			// compute the signatures, one block of examples per thread
+			final int[][] signatures = new int[n][];
+			final int sketchLength = (hashSeeds.length + 63) / 64;
+			final long[] sketches = new long[n * sketchLength];
+			ArrayList<Future<?>> done = new ArrayList<Future<?>>();
+			int blockSize = (n + numThreads - 1) / numThreads;
+
+			for( int start = 0; start < n; start += blockSize ){
+				final int blockStart = start;
+				final int blockEnd = Math.min(n, start + blockSize);
+
+				done.add(pool.submit(() -> {
+					for( int i = blockStart; i < blockEnd; i++ ){
+						signatures[i] = getSignature(examples.get(i));
+						setSketch(signatures[i], sketches, i * sketchLength);
+					}
+				}));
+			}
+
+			for( Future<?> f: done ){
+				f.get();
+			}
+
+			// union the near-duplicates together, always keeping the earliest example as the root.
+			// Examples with the same signature are always near-duplicates, so they're grouped here and
+			// only the first of each group is bucketed.
+			int[] parent = new int[n];
+			HashMap<BandKey, Integer> firstWithSignature = new HashMap<BandKey, Integer>();
+			ArrayList<Integer> distinct = new ArrayList<Integer>();
+
+			for( int i = 0; i < n; i++ ){
+				double label = requireSameLabel ? examples.get(i).getLabel() : 0;
+				Integer first = firstWithSignature.putIfAbsent(new BandKey(signatures[i], 0, signatures[i].length, label), i);
+
+				if( first == null ){
+					parent[i] = i;
+					distinct.add(i);
+				}else{
+					parent[i] = first;
+				}
+			}
+
+			final int[] representatives = new int[distinct.size()];
+
+			for( int i = 0; i < representatives.length; i++ ){
+				representatives[i] = distinct.get(i);
+			}
+
+			// each band finds its own candidate pairs
+			ArrayList<Future<ArrayList<int[]>>> bandPairs = new ArrayList<Future<ArrayList<int[]>>>();
+
+			for( int b = 0; b < numBands; b++ ){
+				final int band = b;
+
+				bandPairs.add(pool.submit(() -> getDuplicatePairs(examples, signatures, sketches, representatives, band)));
+			}
+
+			for( Future<ArrayList<int[]>> f: bandPairs ){
+				for( int[] pair: f.get() ){
+					int a = find(parent, pair[0]);
+					int b = find(parent, pair[1]);
+
+					if( a != b ){
+						parent[Math.max(a, b)] = Math.min(a, b);
+					}
+				}
+			}
+
+			// collapse each group into its root
+			double[] groupWeight = new double[n];
+
+			for( int i = 0; i < n; i++ ){
+				groupWeight[find(parent, i)] += examples.get(i).getWeight();
+			}
+
+			DataSet filtered = new DataSet(data.getFeatureDictionary());
+
+			for( int i = 0; i < n; i++ ){
+				if( parent[i] == i ){
+					Example e = new Example(examples.get(i));
+					e.setWeight(groupWeight[i]);
+					filtered.addData(e);
+				}
+			}
+
+			return filtered;
+		}catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}catch( ExecutionException e ){
+			throw new RuntimeException(e.getCause());
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The MinHash signature of an example's feature set: for each hash function,
+	 * the minimum hash value over all of the features.
+	 *
+	 * @param e
+	 * @return the signature
+	 */
+	private int[] getSignature(Example e){
+		int[] signature = new int[hashSeeds.length];
+
+		for( int i = 0; i < signature.length; i++ ){
+			signature[i] = Integer.MAX_VALUE;
+		}
+
+		for( int feature: e.getFeatureSet() ){
+			for( int i = 0; i < signature.length; i++ ){
+				int h = hash(feature, hashSeeds[i]);
+
+				if( h < signature[i] ){
+					signature[i] = h;
+				}
+			}
+		}
+
+		return signature;
+	}
+
+	/**
+	 * Bucket the examples by one band of their signatures and check each example against the
+	 * earlier examples in its bucket, skipping those it has already been grouped with.
+	 *
+	 * @param examples
+	 * @param signatures
+	 * @param sketches the sketch of each signature (see setSketch)
+	 * @param representatives the indices of the examples to bucket, in order (one per distinct signature)
+	 * @param band
+	 * @return the pairs of indices that are near-duplicates
+	 */
+	private ArrayList<int[]> getDuplicatePairs(ArrayList<Example> examples, int[][] signatures, long[] sketches, int[] representatives, int band){
+		HashMap<BandKey, ArrayList<Integer>> buckets = new HashMap<BandKey, ArrayList<Integer>>();
+		ArrayList<int[]> pairs = new ArrayList<int[]>();
+		int[] parent = new int[signatures.length]; // the near-duplicates found so far in this band
+		int start = band * rowsPerBand;
+
+		for( int i = 0; i < parent.length; i++ ){
+			parent[i] = i;
+		}
+
+		for( int i: representatives ){
+			double label = requireSameLabel ? examples.get(i).getLabel() : 0;
+			BandKey key = new BandKey(signatures[i], start, start + rowsPerBand, label);
+			ArrayList<Integer> bucket = buckets.computeIfAbsent(key, k -> new ArrayList<Integer>());
+
+			for( int member: bucket ){
+				int a = find(parent, member);
+				int b = find(parent, i);
+
+				// members already grouped with i don't need to be checked again
+				if( a != b && isSimilar(signatures, sketches, member, i) ){
+					parent[Math.max(a, b)] = Math.min(a, b);
+					pairs.add(new int[]{member, i});
+				}
+			}
+
+			bucket.add(i);
+		}
+
+		return pairs;
+	}
+
+	/**
+	 * One band of a signature (and the label, when merging requires the same label), compared
+	 * value by value so that different bands never share a bucket.
+	 */
+	private static class BandKey {
+		private final int[] signature;
+		private final int from;
+		private final int to;
+		private final double label;
+		private final int hash;
+
+		BandKey(int[] signature, int from, int to, double label){
+			this.signature = signature;
+			this.from = from;
+			this.to = to;
+			this.label = label;
+
+			int h = Double.hashCode(label);
+
+			for( int r = from; r < to; r++ ){
+				h = h * 31 + signature[r];
+			}
+
+			hash = h;
+		}
+
+		@Override
+		public int hashCode(){
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if( !(o instanceof BandKey) ){
+				return false;
+			}
+
+			BandKey other = (BandKey)o;
+			return Double.compare(label, other.label) == 0
+					&& Arrays.equals(signature, from, to, other.signature, other.from, other.to);
+		}
+	}
+
+	/**
+	 * Pack the lowest bit of each signature value into sketches, starting at offset.  Two signatures
+	 * differ in at least as many values as their sketches differ in bits, so comparing the sketches
+	 * rules out most candidates without reading the signatures.
+	 */
+	private static void setSketch(int[] signature, long[] sketches, int offset){
+		for( int i = 0; i < signature.length; i++ ){
+			sketches[offset + i / 64] |= (long)(signature[i] & 1) << (i % 64);
+		}
+	}
+
+	/**
+	 * Whether the estimated Jaccard similarity of two examples (the fraction of their signature values
+	 * that are the same) is at least the threshold.  Most candidates in a big bucket aren't
+	 * near-duplicates, so the sketches are checked first and the signatures only until too many
+	 * values differ.
+	 */
+	private boolean isSimilar(int[][] signatures, long[] sketches, int a, int b){
+		int sketchLength = sketches.length / signatures.length;
+		int different = 0;
+
+		for( int i = 0; i < sketchLength; i++ ){
+			different += Long.bitCount(sketches[a * sketchLength + i] ^ sketches[b * sketchLength + i]);
+		}
+
+		if( different > maxDifferent ){
+			return false;
+		}
+
+		different = 0;
+
+		for( int i = 0; i < signatures[a].length; i++ ){
+			if( signatures[a][i] != signatures[b][i] && ++different > maxDifferent ){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static int find(int[] parent, int i){
+		while( parent[i] != i ){
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+
+		return i;
+	}
+
+	/**
+	 * Hash a feature index with one of the hash functions (a seeded 64-bit mix)
+	 */
+	private static int hash(int feature, long hashSeed){
+		long h = feature * 0x9E3779B97F4A7C15L + hashSeed;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return (int)(h ^ (h >>> 31));
+	}
+}
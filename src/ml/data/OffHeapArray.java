@@ -0,0 +1,178 @@
+package ml.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * A growable array of fixed-width primitives stored outside of the Java heap, either in
+ * direct buffers or in a memory-mapped file.  Indices are longs so the array can be
+ * bigger than a single ByteBuffer allows; the storage is split into 1GB segments.
+ *
+ * Direct buffers count against -XX:MaxDirectMemorySize (which defaults to -Xmx), and growing
+ * a direct segment copies it, so for a moment both the old and the new segment are allocated.
+ * So that a big array doesn't need a big heap setting, an array without a backing file only
+ * keeps its first ml.offheap.directLimit bytes (a system property, default a sixteenth of the
+ * maximum heap size) in direct buffers.  Past that, the rest is mapped from a temporary file,
+ * which only uses the operating system's page cache and grows without copying.
+ */
+class OffHeapArray {
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+	// most bytes of direct buffers an array without a backing file uses before it moves to a temporary file
+	private static final long DIRECT_LIMIT = Long.getLong("ml.offheap.directLimit", Runtime.getRuntime().maxMemory() / 16);
+
+	private final int elementSize; // bytes per element
+	private FileChannel file; // null while stored in direct buffers
+	private File tempFile; // the file the array moved to when it got past DIRECT_LIMIT, if it did
+	private int firstMappedSegment = 0; // segments from this one on are mapped from file
+	private ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	private long capacity = 0; // in bytes
+	private long directBytes = 0; // bytes in direct buffers
+
+	/**
+	 * @param elementSize number of bytes per element (4 or 8)
+	 * @param backingFile file to map the array into, or null to use direct buffers
+	 * @throws IOException
+	 */
+	OffHeapArray(int elementSize, File backingFile) throws IOException {
+		this.elementSize = elementSize;
+
+		if( backingFile != null ){
+			RandomAccessFile raf = new RandomAccessFile(backingFile, "rw");
+			raf.setLength(0);
+			file = raf.getChannel();
+		}else{
+			file = null;
+		}
+	}
+
+	/**
+	 * Make sure there is room for at least numElements
+	 *
+	 * @param numElements
+	 * @throws IOException
+	 */
+	void ensureCapacity(long numElements) throws IOException {
+		long needed = numElements * elementSize;
+
+		while( capacity < needed ){
+			ByteBuffer last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+			if( last != null && last.capacity() < SEGMENT_SIZE ){
+				// double the last segment, up to the segment size
+				int newSize = (int)Math.min(SEGMENT_SIZE, Math.max(last.capacity() * 2L, needed - (capacity - last.capacity())));
+				boolean wasMapped = isMapped(segments.size() - 1);
+				ByteBuffer bigger = allocate(segments.size() - 1, newSize);
+
+				// a mapped segment's data is already in the file; a direct one has to be copied
+				if( !wasMapped ){
+					ByteBuffer old = last.duplicate();
+					old.clear();
+					bigger.put(old);
+					bigger.clear();
+					directBytes -= last.capacity();
+				}
+
+				segments.set(segments.size() - 1, bigger);
+				capacity += newSize - last.capacity();
+			}else{
+				int size = (int)Math.min(SEGMENT_SIZE, Math.max(1 << 16, needed - capacity));
+				segments.add(allocate(segments.size(), size));
+				capacity += size;
+			}
+		}
+	}
+
+	private boolean isMapped(int segment){
+		return file != null && segment >= firstMappedSegment;
+	}
+
+	private ByteBuffer allocate(int segment, int size) throws IOException {
+		ByteBuffer buffer;
+
+		if( file == null && directBytes + size > DIRECT_LIMIT ){
+			// too big for direct buffers, map the rest (starting with this segment) from a temporary file
+			tempFile = File.createTempFile("offheap", ".bin");
+			tempFile.deleteOnExit();
+			file = new RandomAccessFile(tempFile, "rw").getChannel();
+			firstMappedSegment = segment;
+		}
+
+		if( file == null ){
+			buffer = ByteBuffer.allocateDirect(size);
+			directBytes += size;
+		}else{
+			// mapping past the end of the file extends it, and the data already
+			// written to the file is still there
+			buffer = file.map(FileChannel.MapMode.READ_WRITE, (long)segment << SEGMENT_SHIFT, size);
+		}
+
+		return buffer.order(ByteOrder.nativeOrder());
+	}
+
+	private ByteBuffer segment(long position){
+		return segments.get((int)(position >>> SEGMENT_SHIFT));
+	}
+
+	int getInt(long index){
+		long position = index * elementSize;
+		return segment(position).getInt((int)(position & SEGMENT_MASK));
+	}
+
+	void putInt(long index, int value){
+		long position = index * elementSize;
+		segment(position).putInt((int)(position & SEGMENT_MASK), value);
+	}
+
+	long getLong(long index){
+		long position = index * elementSize;
+		return segment(position).getLong((int)(position & SEGMENT_MASK));
+	}
+
+	void putLong(long index, long value){
+		long position = index * elementSize;
+		segment(position).putLong((int)(position & SEGMENT_MASK), value);
+	}
+
+	float getFloat(long index){
+		long position = index * elementSize;
+		return segment(position).getFloat((int)(position & SEGMENT_MASK));
+	}
+
+	void putFloat(long index, float value){
+		long position = index * elementSize;
+		segment(position).putFloat((int)(position & SEGMENT_MASK), value);
+	}
+
+	double getDouble(long index){
+		long position = index * elementSize;
+		return segment(position).getDouble((int)(position & SEGMENT_MASK));
+	}
+
+	void putDouble(long index, double value){
+		long position = index * elementSize;
+		segment(position).putDouble((int)(position & SEGMENT_MASK), value);
+	}
+
+	/**
+	 * Release the file (if there is one, and delete it if it was a temporary
+	 * file).  The mapped data stays readable until the buffers are garbage collected.
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		if( file != null ){
+			file.close();
+		}
+
+		if( tempFile != null ){
+			tempFile.delete();
+		}
+	}
+}
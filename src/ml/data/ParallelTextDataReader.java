@@ -0,0 +1,354 @@
+package ml.data;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ml.utils.HashMapCounter;
+import ml.utils.Metrics;
+import ml.utils.events.TextParseEvent;
+
+/**
+ * A multi-threaded version of TextDataReader for large text files (same file format).
+ *
+ * The file is split into line-aligned chunks that are tokenized concurrently.  Each
+ * thread numbers the words it sees with its own local dictionary.  Once all of the
+ * chunks are done the local dictionaries are merged in file order and the examples
+ * are remapped to the global feature indices, so the numbering is deterministic and
+ * is the same one TextDataReader would have produced.
+ *
+ * Unlike TextDataReader, blank lines are skipped.
+ */
+public class ParallelTextDataReader {
+	private String textFile;
+	private int numThreads;
+
+	private ArrayList<Example> examples = new ArrayList<Example>();
+	private FeatureDictionary dictionary;
+
+	/**
+	 * @param textFile the text file containing the examples
+	 * @param numThreads number of threads to read with
+	 */
+	public ParallelTextDataReader(String textFile, int numThreads){
+		this.textFile = textFile;
+		this.numThreads = Math.max(1, numThreads);
+	}
+
+	/**
+	 * Read all of the examples in the file.
+	 *
+	 * @throws IOException
+	 */
+	public void read() throws IOException {
+		TextParseEvent event = new TextParseEvent();
+		event.source = textFile;
+		event.begin();
+		
+		FileChannel channel = FileChannel.open(Paths.get(textFile), StandardOpenOption.READ);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+		try{
+			long[] bounds = LineChunker.split(channel, 0, channel.size(), numThreads);
+			ArrayList<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+
+			for( int i = 0; i + 1 < bounds.length; i++ ){
+				final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i+1] - bounds[i]);
+				futures.add(pool.submit(() -> {
+					Chunk chunk = new Chunk();
+					tokenize(buffer, chunk);
+					return chunk;
+				}));
+			}
+
+			ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+
+			for( Future<Chunk> f: futures ){
+				chunks.add(f.get());
+			}
+
+			// merge the local dictionaries in file order, reporting the vocabulary growth chunk by chunk
+			FeatureDictionary.Builder merged = new FeatureDictionary.Builder();
+			VocabularyGrowth growth = new VocabularyGrowth(textFile);
+			long documents = 0;
+
+			for( Chunk c: chunks ){
+				int[] remap = new int[c.numWords()];
+
+				for( int i = 0; i < remap.length; i++ ){
+					remap[i] = merged.add(c.getWord(i));
+				}
+
+				c.setRemap(remap);
+				documents += c.labels.size();
+				growth.report(documents, merged.size());
+			}
+
+			dictionary = merged.build();
+			long characters = 0;
+
+			for( Chunk c: chunks ){
+				characters += c.characters;
+			}
+
+			// build the examples with the global indices
+			ArrayList<Future<ArrayList<Example>>> built = new ArrayList<Future<ArrayList<Example>>>();
+
+			for( final Chunk c: chunks ){
+				built.add(pool.submit(() -> c.toExamples()));
+			}
+
+			for( Future<ArrayList<Example>> f: built ){
+				examples.addAll(f.get());
+			}
+			
+			event.documents = examples.size();
+			event.characters = characters;
+			event.vocabularySize = dictionary.size();
+			event.commit();
+			
+			Metrics metrics = Metrics.get();
+			metrics.count("text.documents", examples.size());
+			metrics.count("text.characters", characters);
+			metrics.record("text.vocabulary", dictionary.size());
+		}catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + textFile, e);
+		}catch( ExecutionException e ){
+			throw new IOException("Problem reading " + textFile, e.getCause());
+		}finally{
+			pool.shutdownNow();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Read the lines that start in [start, end) of a text file, with the words numbered
+	 * locally (e.g. one process's share of a file that is too big for one process).
+	 *
+	 * @param textFile
+	 * @param start
+	 * @param end
+	 * @return the tokenized lines
+	 * @throws IOException
+	 */
+	public static Chunk readLines(String textFile, long start, long end) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(textFile), StandardOpenOption.READ);
+
+		try{
+			long size = channel.size();
+			long first = LineChunker.nextLineStart(channel, start, size);
+			long last = LineChunker.nextLineStart(channel, Math.min(end, size), size);
+			long[] bounds = LineChunker.split(channel, first, last, 1); // each piece small enough to map
+			Chunk chunk = new Chunk();
+
+			for( int i = 0; i + 1 < bounds.length; i++ ){
+				tokenize(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i+1] - bounds[i]), chunk);
+			}
+
+			return chunk;
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Tokenize every line in buffer into chunk, using the chunk's local word numbering.
+	 *
+	 * @param buffer part of the file starting at the beginning of a line
+	 * @param chunk where to add the tokenized lines
+	 */
+	private static void tokenize(MappedByteBuffer buffer, Chunk chunk){
+		Charset charset = Charset.defaultCharset();
+		byte[] line = new byte[1024];
+		int limit = buffer.limit();
+		int pos = 0;
+
+		while( pos < limit ){
+			int length = 0;
+
+			while( pos < limit && buffer.get(pos) != '\n' ){
+				if( length == line.length ){
+					line = Arrays.copyOf(line, line.length * 2);
+				}
+
+				line[length++] = buffer.get(pos++);
+			}
+
+			pos++; // skip the newline
+
+			if( length > 0 && line[length-1] == '\r' ){
+				length--;
+			}
+
+			String text = new String(line, 0, length, charset);
+
+			if( text.trim().isEmpty() ){
+				continue;
+			}
+
+			String[] parts = text.split("\\s+");
+			HashMapCounter<String> counter = TextDataReader.countWords(parts);
+
+			int[] features = new int[counter.size()];
+			double[] counts = new double[counter.size()];
+			int i = 0;
+
+			for( String word: counter.keySet() ){
+				features[i] = chunk.words.add(word);
+				counts[i] = counter.get(word);
+				i++;
+			}
+
+			chunk.labels.add(Double.parseDouble(parts[0]));
+			chunk.characters += text.length() + 1; // counted like TextDataReader, one more for the newline
+			chunk.features.add(features);
+			chunk.counts.add(counts);
+		}
+	}
+
+	/**
+	 * Get the examples read.  Only valid after read has been called.
+	 *
+	 * @return the examples, in file order
+	 */
+	public ArrayList<Example> getExamples(){
+		return examples;
+	}
+
+	/**
+	 * Get the feature mapping (i.e. association from feature index to word) for
+	 * all of the examples read.
+	 *
+	 * @return feature map
+	 */
+	public HashMap<Integer, String> getFeatureMap(){
+		return dictionary.toFeatureMap();
+	}
+
+	/**
+	 * Get the dictionary of the words in all of the examples read.
+	 *
+	 * @return the dictionary
+	 */
+	public FeatureDictionary getFeatureDictionary(){
+		return dictionary;
+	}
+
+	/**
+	 * The tokenized lines of one chunk of a file, with the features numbered locally
+	 * until the global numbering is known (see setRemap)
+	 */
+	public static class Chunk {
+		private FeatureDictionary.Builder words = new FeatureDictionary.Builder(); // local numbering, in the order first seen
+		private ArrayList<Double> labels = new ArrayList<Double>();
+		private ArrayList<int[]> features = new ArrayList<int[]>();
+		private ArrayList<double[]> counts = new ArrayList<double[]>();
+		private int[] remap; // local index -> global index, filled in when merging
+		private long characters = 0; // length of the example lines
+
+		private Chunk(){
+		}
+
+		/**
+		 * @return the number of lines (examples)
+		 */
+		public int size(){
+			return labels.size();
+		}
+
+		/**
+		 * @return the number of different words, numbered 0 to numWords()-1 in the order first seen
+		 */
+		public int numWords(){
+			return words.size();
+		}
+
+		/**
+		 * @param index a local word number
+		 * @return the word
+		 */
+		public String getWord(int index){
+			return words.getName(index);
+		}
+
+		/**
+		 * Set the global feature index of each local word number.  The words themselves
+		 * aren't kept after this.
+		 *
+		 * @param remap
+		 */
+		public void setRemap(int[] remap){
+			this.remap = remap;
+			words = null;
+		}
+
+		/**
+		 * Create the examples, with the global feature indices.  Only valid after setRemap.
+		 *
+		 * @return the examples
+		 */
+		public ArrayList<Example> toExamples(){
+			ArrayList<Example> result = new ArrayList<Example>(labels.size());
+
+			for( int i = 0; i < labels.size(); i++ ){
+				Example e = new Example();
+				e.setLabel(labels.get(i));
+
+				int[] f = features.get(i);
+				double[] c = counts.get(i);
+
+				for( int j = 0; j < f.length; j++ ){
+					e.addFeature(remap[f[j]], c[j]);
+				}
+
+				result.add(e);
+			}
+
+			return result;
+		}
+
+		/**
+		 * Append the lines to a matrix, one row each, with the global feature indices.  Only
+		 * valid after setRemap.
+		 *
+		 * @param matrix
+		 * @throws IOException
+		 */
+		public void addTo(SparseMatrix matrix) throws IOException {
+			for( int i = 0; i < labels.size(); i++ ){
+				int[] f = features.get(i);
+				double[] c = counts.get(i);
+
+				// sort by global index, keeping each value's position in the low bits
+				long[] order = new long[f.length];
+
+				for( int j = 0; j < f.length; j++ ){
+					order[j] = ((long)remap[f[j]] << 32) | j;
+				}
+
+				Arrays.sort(order);
+
+				int[] rowIndices = new int[f.length];
+				double[] rowValues = new double[f.length];
+
+				for( int j = 0; j < f.length; j++ ){
+					rowIndices[j] = (int)(order[j] >>> 32);
+					rowValues[j] = c[(int)order[j]];
+				}
+
+				matrix.addRow(labels.get(i), rowIndices, rowValues);
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package ml.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A sparse random projection of high dimensional sparse data (e.g. tf/idf word vectors) down to a small
+ * number of dense dimensions that approximately preserves lengths and angles (Johnson-Lindenstrauss).
+ *
+ * Each entry of the projection matrix is +sqrt(s) or -sqrt(s) with probability 1/(2s) each and 0 otherwise,
+ * scaled by 1/sqrt(outputDimension).  s = 3 is Achlioptas' projection; s = sqrt(inputDimension) is the
+ * "very sparse" projection of Li, Hastie and Church, which touches only about outputDimension/s output
+ * dimensions per input feature.  The very sparse projection is cheaper but noisier on heavy tailed data
+ * like tf/idf vectors, so the sparse one is the better default for clustering.
+ *
+ * The matrix is stored by input feature: for each feature, the output dimensions it adds to and the signs.
+ * Each feature's column comes from its own random generator seeded from the seed and the feature, so the
+ * projection only depends on the seed (not on the number of threads).
+ */
+public class RandomProjection {
+	private int inputDimension;
+	private int outputDimension;
+	private double scale; // the size of a non-zero entry, sqrt(s / outputDimension)
+	private int numThreads;
+
+	// column of each input feature: the output dimensions with a non-zero entry, stored
+	// as dimension + 1 for a positive entry and -(dimension + 1) for a negative one
+	private int[][] columns;
+
+	/**
+	 * @param inputDimension number of input features (feature indices 0 to inputDimension - 1)
+	 * @param outputDimension number of dimensions to project to
+	 * @param s one over the probability of an entry being non-zero (at least 1)
+	 * @param seed random seed for the projection
+	 * @param numThreads number of threads to build the projection and project with
+	 */
+	public RandomProjection(int inputDimension, int outputDimension, double s, long seed, int numThreads){
+		this.inputDimension = inputDimension;
+		this.outputDimension = outputDimension;
+		this.scale = Math.sqrt(s / outputDimension);
+		this.numThreads = Math.max(1, numThreads);
+
+		columns = new int[inputDimension][];
+		final double density = 1.0 / Math.max(1, s);
+		ExecutorService pool = Executors.newFixedThreadPool(this.numThreads);
+
+		try{
+			runBlocks(pool, inputDimension, (start, end) -> {
+				for( int f = start; f < end; f++ ){
+					columns[f] = getColumn(f, density, seed);
+				}
+			});
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Achlioptas' sparse projection, with s = 3
+	 *
+	 * @param inputDimension
+	 * @param outputDimension
+	 * @param seed
+	 * @param numThreads
+	 * @return the projection
+	 */
+	public static RandomProjection sparse(int inputDimension, int outputDimension, long seed, int numThreads){
+		return new RandomProjection(inputDimension, outputDimension, 3, seed, numThreads);
+	}
+
+	/**
+	 * A very sparse projection, with s = sqrt(inputDimension) but no more than outputDimension, so every
+	 * feature still expects at least one non-zero entry (otherwise most features would be dropped entirely
+	 * when projecting to a few dimensions)
+	 *
+	 * @param inputDimension
+	 * @param outputDimension
+	 * @param seed
+	 * @param numThreads
+	 * @return the projection
+	 */
+	public static RandomProjection verySparse(int inputDimension, int outputDimension, long seed, int numThreads){
+		double s = Math.min(Math.sqrt(inputDimension), outputDimension);
+		return new RandomProjection(inputDimension, outputDimension, Math.max(3, s), seed, numThreads);
+	}
+
+	/**
+	 * Generate the non-zero entries of one column.  Rather than drawing for every output dimension,
+	 * the gaps between non-zero entries are drawn from the geometric distribution.
+	 */
+	private int[] getColumn(int feature, double density, long seed){
+		SplittableRandom random = new SplittableRandom(seed ^ (feature * 0x9E3779B97F4A7C15L));
+		int[] column = new int[8];
+		int length = 0;
+		int dimension = -1;
+
+		while( true ){
+			if( density >= 1 ){
+				dimension++;
+			}else{
+				dimension += 1 + (int)Math.floor(Math.log(1 - random.nextDouble()) / Math.log(1 - density));
+			}
+
+			if( dimension >= outputDimension || dimension < 0 ){
+				break;
+			}
+
+			if( length == column.length ){
+				column = Arrays.copyOf(column, length * 2);
+			}
+
+			column[length++] = random.nextBoolean() ? dimension + 1 : -(dimension + 1);
+		}
+
+		return Arrays.copyOf(column, length);
+	}
+
+	public int getInputDimension(){
+		return inputDimension;
+	}
+
+	public int getOutputDimension(){
+		return outputDimension;
+	}
+
+	/**
+	 * Project a sparse vector.  Features outside of the input dimension are ignored.
+	 *
+	 * @param indices the feature index of each value
+	 * @param values the non-zero values
+	 * @param length the number of non-zero values
+	 * @param projected where to put the projection (outputDimension values)
+	 */
+	public void project(int[] indices, double[] values, int length, double[] projected){
+		Arrays.fill(projected, 0, outputDimension, 0);
+
+		for( int i = 0; i < length; i++ ){
+			if( indices[i] < inputDimension ){
+				double value = values[i] * scale;
+
+				for( int entry: columns[indices[i]] ){
+					if( entry > 0 ){
+						projected[entry - 1] += value;
+					}else{
+						projected[-entry - 1] -= value;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Project an example (without changing it)
+	 *
+	 * @param e
+	 * @return the projection
+	 */
+	public double[] project(Example e){
+		int[] indices = new int[e.getFeatureSet().size()];
+		double[] values = new double[indices.length];
+		int length = 0;
+
+		for( int f: e.getFeatureSet() ){
+			indices[length] = f;
+			values[length] = e.getFeature(f);
+			length++;
+		}
+
+		double[] projected = new double[outputDimension];
+		project(indices, values, length, projected);
+		return projected;
+	}
+
+	/**
+	 * Project every row of a matrix into a new matrix of dense rows (see SparseMatrix.dense) with
+	 * outputDimension columns, stored in single precision as one numRows x outputDimension block.
+	 * The labels and weights are copied.  Blocks of rows are projected in parallel and appended in order.
+	 *
+	 * @param data
+	 * @param directory where to put the backing files of the new matrix, or null to keep it in direct buffers
+	 * @return the projected matrix
+	 * @throws IOException
+	 */
+	public SparseMatrix project(SparseMatrix data, File directory) throws IOException {
+		SparseMatrix projected = SparseMatrix.dense(directory, outputDimension, true);
+		int numRows = (int)data.numRows();
+		int batchSize = 1024 * numThreads;
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+		try{
+			for( int batchStart = 0; batchStart < numRows; batchStart += batchSize ){
+				final int offset = batchStart;
+				final double[][] rows = new double[Math.min(batchSize, numRows - batchStart)][];
+
+				runBlocks(pool, rows.length, (start, end) -> {
+					int[] indices = new int[64];
+					double[] values = new double[64];
+
+					for( int i = start; i < end; i++ ){
+						int row = offset + i;
+						int length = (int)(data.rowEnd(row) - data.rowStart(row));
+
+						if( length > indices.length ){
+							indices = new int[length];
+							values = new double[length];
+						}
+
+						for( int j = 0; j < length; j++ ){
+							indices[j] = data.getIndex(data.rowStart(row) + j);
+							values[j] = data.getValue(data.rowStart(row) + j);
+						}
+
+						rows[i] = new double[outputDimension];
+						project(indices, values, length, rows[i]);
+					}
+				});
+
+				for( int i = 0; i < rows.length; i++ ){
+					projected.addDenseRow(data.getLabel(offset + i), data.getWeight(offset + i), rows[i]);
+				}
+			}
+		}finally{
+			pool.shutdown();
+		}
+
+		return projected;
+	}
+
+	/**
+	 * Work on one block of indices
+	 */
+	private interface Block {
+		void run(int start, int end);
+	}
+
+	/**
+	 * Split 0..n into one block per thread and run them concurrently on pool
+	 */
+	private void runBlocks(ExecutorService pool, int n, Block block){
+		try{
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			int blockSize = Math.max(1, (n + numThreads - 1) / numThreads);
+
+			for( int start = 0; start < n; start += blockSize ){
+				final int blockStart = start;
+				final int blockEnd = Math.min(n, start + blockSize);
+
+				futures.add(pool.submit(() -> block.run(blockStart, blockEnd)));
+			}
+
+			for( Future<?> f: futures ){
+				f.get();
+			}
+		}catch( InterruptedException e ){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}catch( ExecutionException e ){
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package ml.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A document-term matrix stored off of the Java heap in compressed sparse row form.
+ *
+ * This is an alternative to keeping a DataSet of Examples in memory for very large
+ * corpora: the labels, weights, row offsets, feature indices and feature values all live in
+ * direct buffers (or in memory-mapped files if a directory is given), so the garbage
+ * collector never has to look at them.  Within a row the features are sorted by index.
+ * Direct buffers count against -XX:MaxDirectMemorySize, so without a directory only the
+ * first part of each array is kept in them and the rest goes to temporary mapped files
+ * (see OffHeapArray and the ml.offheap.directLimit system property).
+ *
+ * The values can optionally be stored in single precision (as floats) to halve their
+ * footprint; they are always read and written as doubles.
+ *
+ * Rows are accessed by position: the non-zero entries of row r are the positions
+ * rowStart(r) up to (but not including) rowEnd(r).
+ *
+ * A matrix made with dense() stores dense rows (e.g. random projections) instead: every row
+ * has an entry for all numColumns columns, so only the n x numColumns block of values is
+ * stored (no indices or row offsets).  Positions work the same way, the entry at position p
+ * is column p - rowStart(r).
+ */
+public class SparseMatrix {
+	private OffHeapArray labels; // one per row
+	private OffHeapArray weights; // one per row
+	private OffHeapArray rowOffsets; // numRows + 1 positions into indices/values (null for dense rows)
+	private OffHeapArray indices; // feature index of each entry (null for dense rows)
+	private OffHeapArray values; // feature value of each entry
+	private boolean singlePrecision; // whether values are stored as floats
+
+	private long numRows = 0;
+	private long numNonZero = 0;
+	private int numColumns = 0; // one more than the largest feature index
+	private boolean dense = false; // whether every row has all numColumns entries (and no indices are stored)
+
+	/**
+	 * Create a new, empty matrix with double precision values.  Use addRow to populate it.
+	 *
+	 * @param directory where to put the backing files, or null to keep everything in direct buffers
+	 * @throws IOException
+	 */
+	public SparseMatrix(File directory) throws IOException {
+		this(directory, false);
+	}
+
+	/**
+	 * Create a new, empty matrix.  Use addRow to populate it.
+	 *
+	 * @param directory where to put the backing files, or null to keep everything in direct buffers
+	 * @param singlePrecision whether to store the values as floats
+	 * @throws IOException
+	 */
+	public SparseMatrix(File directory, boolean singlePrecision) throws IOException {
+		this.singlePrecision = singlePrecision;
+		labels = new OffHeapArray(8, backingFile(directory, "labels"));
+		weights = new OffHeapArray(8, backingFile(directory, "weights"));
+		rowOffsets = new OffHeapArray(8, backingFile(directory, "offsets"));
+		indices = new OffHeapArray(4, backingFile(directory, "indices"));
+		values = new OffHeapArray(singlePrecision ? 4 : 8, backingFile(directory, "values"));
+
+		rowOffsets.ensureCapacity(1);
+		rowOffsets.putLong(0, 0);
+	}
+
+	/**
+	 * Create a new, empty matrix of dense rows.  Use addDenseRow (or addRow) to populate it.
+	 *
+	 * @param directory where to put the backing files, or null to keep everything in direct buffers
+	 * @param numColumns the number of entries in every row
+	 * @param singlePrecision whether to store the values as floats
+	 * @return the matrix
+	 * @throws IOException
+	 */
+	public static SparseMatrix dense(File directory, int numColumns, boolean singlePrecision) throws IOException {
+		return new SparseMatrix(directory, numColumns, singlePrecision);
+	}
+
+	private SparseMatrix(File directory, int numColumns, boolean singlePrecision) throws IOException {
+		this.singlePrecision = singlePrecision;
+		this.numColumns = numColumns;
+		dense = true;
+		labels = new OffHeapArray(8, backingFile(directory, "labels"));
+		weights = new OffHeapArray(8, backingFile(directory, "weights"));
+		values = new OffHeapArray(singlePrecision ? 4 : 8, backingFile(directory, "values"));
+	}
+
+	private static File backingFile(File directory, String name){
+		return directory == null ? null : new File(directory, name + ".bin");
+	}
+
+	/**
+	 * Read all of the examples from reader (e.g. a TextDataReader) into a new matrix.
+	 * The examples are only needed while they are being copied.
+	 *
+	 * @param reader
+	 * @param directory where to put the backing files, or null to keep everything in direct buffers
+	 * @return the matrix
+	 * @throws IOException
+	 */
+	public static SparseMatrix read(Iterator<Example> reader, File directory) throws IOException {
+		return read(reader, directory, false);
+	}
+
+	/**
+	 * Read all of the examples from reader (e.g. a TextDataReader) into a new matrix.
+	 * The examples are only needed while they are being copied.
+	 *
+	 * @param reader
+	 * @param directory where to put the backing files, or null to keep everything in direct buffers
+	 * @param singlePrecision whether to store the values as floats
+	 * @return the matrix
+	 * @throws IOException
+	 */
+	public static SparseMatrix read(Iterator<Example> reader, File directory, boolean singlePrecision) throws IOException {
+		SparseMatrix matrix = new SparseMatrix(directory, singlePrecision);
+
+		while( reader.hasNext() ){
+			matrix.addRow(reader.next());
+		}
+
+		return matrix;
+	}
+
+	/**
+	 * Copy all of the examples in data into a new off-heap matrix.
+	 *
+	 * @param data
+	 * @return the matrix
+	 * @throws IOException
+	 */
+	public static SparseMatrix fromDataSet(DataSet data) throws IOException {
+		return fromDataSet(data, false);
+	}
+
+	/**
+	 * Copy all of the examples in data into a new off-heap matrix.
+	 *
+	 * @param data
+	 * @param singlePrecision whether to store the values as floats
+	 * @return the matrix
+	 * @throws IOException
+	 */
+	public static SparseMatrix fromDataSet(DataSet data, boolean singlePrecision) throws IOException {
+		SparseMatrix matrix = read(data.getData().iterator(), null, singlePrecision);
+
+		// make sure the width covers the full feature set, even if a feature never shows up
+		matrix.setNumColumns(data.getNumFeatures());
+
+		return matrix;
+	}
+
+	/**
+	 * Append example e as a new row
+	 *
+	 * @param e
+	 * @throws IOException
+	 */
+	public void addRow(Example e) throws IOException {
+		ArrayList<Integer> features = new ArrayList<Integer>(e.getFeatureSet());
+		int[] rowIndices = new int[features.size()];
+		double[] rowValues = new double[features.size()];
+
+		for( int i = 0; i < rowIndices.length; i++ ){
+			rowIndices[i] = features.get(i);
+		}
+
+		Arrays.sort(rowIndices);
+
+		for( int i = 0; i < rowIndices.length; i++ ){
+			rowValues[i] = e.getFeature(rowIndices[i]);
+		}
+
+		addRow(e.getLabel(), e.getWeight(), rowIndices, rowValues);
+	}
+
+	/**
+	 * Append a new row with a weight of 1
+	 *
+	 * @param label the label of the row
+	 * @param rowIndices the feature indices, in increasing order
+	 * @param rowValues the values that go with rowIndices
+	 * @throws IOException
+	 */
+	public void addRow(double label, int[] rowIndices, double[] rowValues) throws IOException {
+		addRow(label, 1.0, rowIndices, rowValues);
+	}
+
+	/**
+	 * Append a new row
+	 *
+	 * @param label the label of the row
+	 * @param weight the weight of the row (see Example.getWeight)
+	 * @param rowIndices the feature indices, in increasing order
+	 * @param rowValues the values that go with rowIndices
+	 * @throws IOException
+	 */
+	public void addRow(double label, double weight, int[] rowIndices, double[] rowValues) throws IOException {
+		if( dense ){
+			// fill in the zeros
+			double[] row = new double[numColumns];
+
+			for( int i = 0; i < rowIndices.length; i++ ){
+				if( rowIndices[i] >= numColumns ){
+					throw new IllegalArgumentException("Feature " + rowIndices[i] + " doesn't fit in a dense row of " + numColumns);
+				}
+
+				row[rowIndices[i]] = rowValues[i];
+			}
+
+			addDenseRow(label, weight, row);
+			return;
+		}
+
+		labels.ensureCapacity(numRows + 1);
+		weights.ensureCapacity(numRows + 1);
+		rowOffsets.ensureCapacity(numRows + 2);
+		indices.ensureCapacity(numNonZero + rowIndices.length);
+		values.ensureCapacity(numNonZero + rowIndices.length);
+
+		for( int i = 0; i < rowIndices.length; i++ ){
+			indices.putInt(numNonZero + i, rowIndices[i]);
+			setValue(numNonZero + i, rowValues[i]);
+			numColumns = Math.max(numColumns, rowIndices[i] + 1);
+		}
+
+		labels.putDouble(numRows, label);
+		weights.putDouble(numRows, weight);
+		numNonZero += rowIndices.length;
+		numRows++;
+		rowOffsets.putLong(numRows, numNonZero);
+	}
+
+	/**
+	 * Append a new row to a matrix of dense rows (see dense())
+	 *
+	 * @param label the label of the row
+	 * @param weight the weight of the row (see Example.getWeight)
+	 * @param rowValues the value of every column (at least numColumns of them)
+	 * @throws IOException
+	 */
+	public void addDenseRow(double label, double weight, double[] rowValues) throws IOException {
+		if( !dense ){
+			throw new IllegalStateException("Not a matrix of dense rows");
+		}
+
+		labels.ensureCapacity(numRows + 1);
+		weights.ensureCapacity(numRows + 1);
+		values.ensureCapacity(numNonZero + numColumns);
+
+		for( int i = 0; i < numColumns; i++ ){
+			setValue(numNonZero + i, rowValues[i]);
+		}
+
+		labels.putDouble(numRows, label);
+		weights.putDouble(numRows, weight);
+		numNonZero += numColumns;
+		numRows++;
+	}
+
+	public long numRows(){
+		return numRows;
+	}
+
+	/**
+	 * @return one more than the largest feature index
+	 */
+	public int numColumns(){
+		return numColumns;
+	}
+
+	/**
+	 * Make the matrix at least numColumns wide, even if the last features don't show up in any row
+	 *
+	 * @param numColumns
+	 */
+	void setNumColumns(int numColumns){
+		if( dense ){
+			return; // fixed when the matrix is made
+		}
+
+		this.numColumns = Math.max(this.numColumns, numColumns);
+	}
+
+	/**
+	 * @return the number of stored entries (for dense rows, numRows * numColumns, zeros included)
+	 */
+	public long numNonZero(){
+		return numNonZero;
+	}
+
+	public boolean isSinglePrecision(){
+		return singlePrecision;
+	}
+
+	/**
+	 * @return whether every row has all numColumns entries (see dense())
+	 */
+	public boolean isDense(){
+		return dense;
+	}
+
+	public double getLabel(long row){
+		return labels.getDouble(row);
+	}
+
+	public double getWeight(long row){
+		return weights.getDouble(row);
+	}
+
+	/**
+	 * @param row
+	 * @return the position of the first entry in row
+	 */
+	public long rowStart(long row){
+		return dense ? row * numColumns : rowOffsets.getLong(row);
+	}
+
+	/**
+	 * @param row
+	 * @return the position just after the last entry in row
+	 */
+	public long rowEnd(long row){
+		return dense ? (row + 1) * numColumns : rowOffsets.getLong(row + 1);
+	}
+
+	/**
+	 * @param position
+	 * @return the feature index of the entry at position
+	 */
+	public int getIndex(long position){
+		return dense ? (int)(position % numColumns) : indices.getInt(position);
+	}
+
+	/**
+	 * @param position
+	 * @return the value of the entry at position
+	 */
+	public double getValue(long position){
+		return singlePrecision ? values.getFloat(position) : values.getDouble(position);
+	}
+
+	/**
+	 * Change the value of the entry at position.  In single precision mode
+	 * the value is rounded to the nearest float.
+	 *
+	 * @param position
+	 * @param value
+	 */
+	public void setValue(long position, double value){
+		if( singlePrecision ){
+			values.putFloat(position, (float)value);
+		}else{
+			values.putDouble(position, value);
+		}
+	}
+
+	/**
+	 * Create an Example with the contents of row.  Mostly for debugging
+	 * and interoperability; iterating over the positions avoids creating objects.
+	 *
+	 * @param row
+	 * @return the example
+	 */
+	public Example getExample(long row){
+		Example e = new Example();
+		e.setLabel(getLabel(row));
+		e.setWeight(getWeight(row));
+
+		for( long p = rowStart(row); p < rowEnd(row); p++ ){
+			e.addFeature(getIndex(p), getValue(p));
+		}
+
+		return e;
+	}
+
+	/**
+	 * Release any backing files
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		labels.close();
+		weights.close();
+		values.close();
+
+		if( !dense ){
+			rowOffsets.close();
+			indices.close();
+		}
+	}
+}
@@ -4,10 +4,12 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.HashMap;
 
 import ml.utils.HashMapCounter;
+import ml.utils.Metrics;
+import ml.utils.events.TextParseEvent;
 
 
 /**
@@ -24,19 +26,33 @@ public class TextDataReader implements Iterator<Example>{
 	private BufferedReader in; // source to be reading data from
 	
 	// keep track of the mapping of the words to their feature index
-	private HashMap<String, Integer> wordToFeature = new HashMap<String,Integer>();
-	private int currentFeature = 0;
+	private FeatureDictionary.Builder dictionary = new FeatureDictionary.Builder();
+	
+	// instrumentation, reported once the whole file has been read (and the vocabulary size as it grows)
+	private TextParseEvent event = new TextParseEvent();
+	private VocabularyGrowth growth;
+	private long documents = 0;
+	private long characters = 0;
 		
 	/**
 	 * @param textFile the text file containing the examples
 	 */
 	public TextDataReader(String textFile){		
+		event.source = textFile;
+		event.begin();
+		growth = new VocabularyGrowth(textFile);
+		
 		try {
 			in = new BufferedReader(new FileReader(textFile));
 			nextLine = in.readLine();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		
+		// an empty file is still a read
+		if( nextLine == null ){
+			finished();
+		}
 	}
 	
 	@Override
@@ -55,39 +71,70 @@ public class TextDataReader implements Iterator<Example>{
 			String[] parts = nextLine.split("\\s+");
 			
 			data.setLabel(Double.parseDouble(parts[0]));
+			documents++;
+			characters += nextLine.length() + 1;
 	
-			// do a little bit of preprocessing and count how
-			// many times each word occurs
-			HashMapCounter<String> counter = new HashMapCounter<String>();
-			
-			for( int i = 1; i < parts.length; i++ ){
-				String w = parts[i].toLowerCase();
-				
-				// check if it has at least one alphabet character
-				if( !w.matches("[^a-z]+")){
-					counter.increment(w);
-				}
-			}
+			HashMapCounter<String> counter = countWords(parts);
 			
 			for( String word: counter.keySet() ){
-				if( !wordToFeature.containsKey(word) ){
-					wordToFeature.put(word, currentFeature);
-					currentFeature++;
-				}
-				
-				data.addFeature(wordToFeature.get(word), counter.get(word));
+				data.addFeature(dictionary.add(word), counter.get(word));
 			}
 			
+			growth.update(documents, dictionary.size());
+			
 			try {
 				nextLine = in.readLine();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			
+			if( nextLine == null ){
+				finished();
+			}
 		}
 		
 		return data;
 	}
 	
+	/**
+	 * Report what was read to JFR and the metrics
+	 */
+	private void finished(){
+		growth.report(documents, dictionary.size());
+		
+		event.documents = documents;
+		event.characters = characters;
+		event.vocabularySize = dictionary.size();
+		event.commit();
+		
+		Metrics metrics = Metrics.get();
+		metrics.count("text.documents", documents);
+		metrics.count("text.characters", characters);
+		metrics.record("text.vocabulary", dictionary.size());
+	}
+	
+	/**
+	 * Do a little bit of preprocessing and count how many times each word
+	 * occurs in the (already split) line.  The first part is the label and is skipped.
+	 * 
+	 * @param parts the whitespace separated parts of the line
+	 * @return the word counts
+	 */
+	public static HashMapCounter<String> countWords(String[] parts){
+		HashMapCounter<String> counter = new HashMapCounter<String>();
+		
+		for( int i = 1; i < parts.length; i++ ){
+			String w = parts[i].toLowerCase();
+			
+			// check if it has at least one alphabet character
+			if( !w.matches("[^a-z]+")){
+				counter.increment(w);
+			}
+		}
+		
+		return counter;
+	}
+	
 	@Override
 	public void remove() {
 		// OPTIONAL, so we won't implement
@@ -101,12 +148,16 @@ public class TextDataReader implements Iterator<Example>{
 	 * @return feature map
 	 */
 	public HashMap<Integer, String> getFeatureMap(){
-		HashMap<Integer, String> featureMap = new HashMap<Integer, String>();
-		
-		for( String word: wordToFeature.keySet() ){
-			featureMap.put(wordToFeature.get(word), word);
-		}
-		
-		return featureMap;
-	}	
+		return dictionary.build().toFeatureMap();
+	}
+	
+	/**
+	 * Get the dictionary of the words in all of the examples read so far.  Generally
+	 * should only be called after all of the examples have been read.
+	 * 
+	 * @return the dictionary
+	 */
+	public FeatureDictionary getFeatureDictionary(){
+		return dictionary.build();
+	}
 }
\ No newline at end of file
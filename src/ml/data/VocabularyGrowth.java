@@ -0,0 +1,67 @@
+package ml.data;
+
+import ml.utils.Metrics;
+import ml.utils.events.VocabularyGrowthEvent;
+
+/**
+ * Helper for reporting how the vocabulary grows while text examples are read.  Every INTERVAL
+ * documents (and at the end) it emits a VocabularyGrowthEvent with the vocabulary size so far and
+ * records the number of new words per 1000 documents since the last report in the
+ * "text.vocabulary_growth" histogram.
+ */
+class VocabularyGrowth {
+	static final long INTERVAL = 10000;
+
+	private String source;
+	private long lastDocuments = 0;
+	private long lastSize = 0;
+
+	/**
+	 * @param source what is being read (e.g. the file name)
+	 */
+	VocabularyGrowth(String source){
+		this.source = source;
+	}
+
+	/**
+	 * Call after each document, report if it's been INTERVAL documents since the last report
+	 *
+	 * @param documents documents read so far
+	 * @param vocabularySize words seen so far
+	 */
+	void update(long documents, long vocabularySize){
+		if( documents - lastDocuments >= INTERVAL ){
+			report(documents, vocabularySize);
+		}
+	}
+
+	/**
+	 * Report the size now (e.g. at the end of the file or after a whole chunk), if any documents were read since the last report
+	 *
+	 * @param documents documents read so far
+	 * @param vocabularySize words seen so far
+	 */
+	void report(long documents, long vocabularySize){
+		if( documents == lastDocuments ){
+			return;
+		}
+
+		VocabularyGrowthEvent event = new VocabularyGrowthEvent();
+
+		if( event.shouldCommit() ){
+			event.source = source;
+			event.documents = documents;
+			event.vocabularySize = vocabularySize;
+			event.commit();
+		}
+
+		Metrics metrics = Metrics.get();
+
+		if( metrics.isEnabled() ){
+			metrics.record("text.vocabulary_growth", 1000.0 * (vocabularySize - lastSize) / (documents - lastDocuments));
+		}
+
+		lastDocuments = documents;
+		lastSize = vocabularySize;
+	}
+}
@@ -0,0 +1,69 @@
+package ml.utils;
+
+/**
+ * A small pluggable metrics interface: counters, timers and histograms, identified by name.
+ * 
+ * The code reports to whatever is installed with Metrics.set (e.g. a SimpleMetrics).  By default
+ * nothing is installed and Metrics.get() returns NONE, which ignores everything; callers check
+ * isEnabled() before doing any extra work (like reading the clock) so that costs next to nothing.
+ */
+public interface Metrics {
+	
+	/**
+	 * Add amount to a counter
+	 * @param name
+	 * @param amount
+	 */
+	void count(String name, long amount);
+	
+	/**
+	 * Record a duration
+	 * @param name
+	 * @param nanos
+	 */
+	void time(String name, long nanos);
+	
+	/**
+	 * Record a value in a histogram
+	 * @param name
+	 * @param value
+	 */
+	void record(String name, double value);
+	
+	/**
+	 * @return whether anything is being recorded
+	 */
+	boolean isEnabled();
+	
+	/**
+	 * Metrics that ignores everything
+	 */
+	Metrics NONE = new Metrics(){
+		public void count(String name, long amount) {}
+		public void time(String name, long nanos) {}
+		public void record(String name, double value) {}
+		public boolean isEnabled() { return false; }
+	};
+	
+	/**
+	 * @return the installed metrics (NONE if there aren't any)
+	 */
+	static Metrics get() {
+		return Registry.current;
+	}
+	
+	/**
+	 * Install metrics for all of the code to report to
+	 * @param metrics the metrics, or null to turn them off
+	 */
+	static void set(Metrics metrics) {
+		Registry.current = metrics == null ? NONE : metrics;
+	}
+	
+	/**
+	 * Holder for the installed metrics (interfaces can't have mutable static fields)
+	 */
+	class Registry {
+		private static volatile Metrics current = NONE;
+	}
+}
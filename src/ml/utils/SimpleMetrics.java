@@ -0,0 +1,94 @@
+package ml.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory Metrics implementation that keeps a running total for each counter and
+ * count/sum/min/max for each timer and histogram.  Safe to use from multiple threads.
+ */
+public class SimpleMetrics implements Metrics {
+	private ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private ConcurrentHashMap<String, Summary> summaries = new ConcurrentHashMap<String, Summary>();
+	
+	public void count(String name, long amount) {
+		counters.computeIfAbsent(name, n -> new LongAdder()).add(amount);
+	}
+	
+	public void time(String name, long nanos) {
+		record(name, nanos / 1e6); // timers are kept in milliseconds
+	}
+	
+	public void record(String name, double value) {
+		summaries.computeIfAbsent(name, n -> new Summary()).add(value);
+	}
+	
+	public boolean isEnabled() {
+		return true;
+	}
+	
+	/**
+	 * @param name
+	 * @return the value of a counter (0 if it was never incremented)
+	 */
+	public long getCount(String name) {
+		LongAdder counter = counters.get(name);
+		return counter == null ? 0 : counter.sum();
+	}
+	
+	/**
+	 * @param name
+	 * @return the summary of a timer (in milliseconds) or histogram, or null if nothing was recorded
+	 */
+	public Summary getSummary(String name) {
+		return summaries.get(name);
+	}
+	
+	/**
+	 * Forget everything recorded so far
+	 */
+	public void clear() {
+		counters.clear();
+		summaries.clear();
+	}
+	
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counters).entrySet()) {
+			builder.append(entry.getKey()).append(": ").append(entry.getValue().sum()).append('\n');
+		}
+		for (Map.Entry<String, Summary> entry : new TreeMap<String, Summary>(summaries).entrySet()) {
+			builder.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Count, sum, min and max of the values recorded for one timer or histogram
+	 */
+	public static class Summary {
+		private long count = 0;
+		private double sum = 0;
+		private double min = Double.MAX_VALUE;
+		private double max = -Double.MAX_VALUE;
+		
+		private synchronized void add(double value) {
+			count++;
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		
+		public synchronized long getCount() { return count; }
+		public synchronized double getSum() { return sum; }
+		public synchronized double getMin() { return min; }
+		public synchronized double getMax() { return max; }
+		public synchronized double getMean() { return count == 0 ? 0 : sum / count; }
+		
+		public synchronized String toString() {
+			return "count=" + count + " mean=" + getMean() + " min=" + min + " max=" + max + " sum=" + sum;
+		}
+	}
+}
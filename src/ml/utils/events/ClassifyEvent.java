@@ -0,0 +1,19 @@
+package ml.utils.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Classifying a single example
+ */
+@Name("ml.Classify")
+@Label("Classify")
+@Category({"ML", "Classification"})
+@StackTrace(false)
+public class ClassifyEvent extends Event {
+	@Label("Classifier")
+	public String classifier;
+}
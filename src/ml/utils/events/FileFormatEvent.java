@@ -0,0 +1,27 @@
+package ml.utils.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Extracting the useful text from one raw corpus file (DataFormatter.parseText)
+ */
+@Name("ml.FileFormat")
+@Label("Corpus File Format")
+@Category({"ML", "Ingestion"})
+@StackTrace(false)
+public class FileFormatEvent extends Event {
+	@Label("File")
+	public String file;
+	
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+	
+	@Label("Text Length")
+	public long textLength;
+}
@@ -0,0 +1,22 @@
+package ml.utils.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Computing the idf value of every feature
+ */
+@Name("ml.IDF")
+@Label("IDF Computation")
+@Category({"ML", "Clustering"})
+@StackTrace(false)
+public class IDFEvent extends Event {
+	@Label("Features")
+	public long features;
+	
+	@Label("Documents")
+	public long documents;
+}
@@ -0,0 +1,31 @@
+package ml.utils.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One iteration of k-means: updating the centroids and then reassigning the examples
+ */
+@Name("ml.KMeansIteration")
+@Label("K-Means Iteration")
+@Category({"ML", "Clustering"})
+@StackTrace(false)
+public class KMeansIterationEvent extends Event {
+	@Label("Iteration")
+	public int iteration;
+	
+	@Label("Update Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long updateNanos;
+	
+	@Label("Assignment Time")
+	@Timespan(Timespan.NANOSECONDS)
+	public long assignmentNanos;
+	
+	@Label("Clustering Changed")
+	public boolean changed;
+}
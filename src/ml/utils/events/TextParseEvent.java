@@ -0,0 +1,28 @@
+package ml.utils.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Reading and tokenizing a file of text examples
+ */
+@Name("ml.TextParse")
+@Label("Text Parse")
+@Category({"ML", "Ingestion"})
+@StackTrace(false)
+public class TextParseEvent extends Event {
+	@Label("Source")
+	public String source;
+	
+	@Label("Documents")
+	public long documents;
+	
+	@Label("Characters")
+	public long characters;
+	
+	@Label("Vocabulary Size")
+	public long vocabularySize;
+}
@@ -0,0 +1,26 @@
+package ml.utils.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The size of the vocabulary part way through reading a file of text examples
+ * (one event every so many documents, so a recording shows how fast the vocabulary grows)
+ */
+@Name("ml.VocabularyGrowth")
+@Label("Vocabulary Growth")
+@Category({"ML", "Ingestion"})
+@StackTrace(false)
+public class VocabularyGrowthEvent extends Event {
+	@Label("Source")
+	public String source;
+	
+	@Label("Documents Read")
+	public long documents;
+	
+	@Label("Vocabulary Size")
+	public long vocabularySize;
+}